@@ -0,0 +1,192 @@
+package cs685.test.selection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.maven.shared.invoker.DefaultInvocationRequest;
+import org.apache.maven.shared.invoker.DefaultInvoker;
+import org.apache.maven.shared.invoker.InvocationOutputHandler;
+import org.apache.maven.shared.invoker.InvocationRequest;
+import org.apache.maven.shared.invoker.InvocationResult;
+import org.apache.maven.shared.invoker.Invoker;
+import org.apache.maven.shared.invoker.MavenInvocationException;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Maven;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+/**
+ * Runs Maven goals with a Maven installation from the Jenkins tool configuration, on the node the build runs on<br>
+ * The installation is set up for that node, Maven is invoked where the workspace lives, and the output is
+ * streamed back line by line
+ *
+ */
+public class MavenEngine {
+	// Used when no Maven installation is configured in Jenkins
+	private static final String DEFAULT_MAVEN_HOME = "/usr/share/maven";
+
+	private final String mavenHome;
+	private final String installationName;
+	private final EnvVars environment;
+
+	private MavenEngine(String mavenHome, String installationName, EnvVars environment) {
+		this.mavenHome = mavenHome;
+		this.installationName = installationName;
+		this.environment = environment;
+	}
+
+	/**
+	 * Finds the Maven installation to run the build with, set up for the node it is built on
+	 * @param mavenName name of the installation, empty for the first one configured
+	 * @param build
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static MavenEngine resolve(String mavenName, AbstractBuild<?, ?> build, TaskListener listener)
+			throws IOException, InterruptedException {
+		Maven.MavenInstallation installation = null;
+		Maven.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(Maven.DescriptorImpl.class);
+		if (descriptor != null) {
+			for (Maven.MavenInstallation candidate : descriptor.getInstallations()) {
+				if (mavenName == null || mavenName.isEmpty() || candidate.getName().equals(mavenName)) {
+					installation = candidate;
+					break;
+				}
+			}
+		}
+		EnvVars environment = build.getEnvironment(listener);
+		String mavenHome = DEFAULT_MAVEN_HOME;
+		String installationName = null;
+		if (installation == null) {
+			listener.getLogger().println("No Maven installation" + (mavenName == null || mavenName.isEmpty() ? "" : " named " + mavenName)
+					+ " is configured, using " + DEFAULT_MAVEN_HOME);
+		} else {
+			Node node = build.getBuiltOn();
+			installation = installation.forNode(node != null ? node : Jenkins.getInstance(), listener)
+					.forEnvironment(environment);
+			if (installation.getHome() != null) {
+				mavenHome = installation.getHome();
+				installationName = installation.getName();
+			}
+		}
+		return new MavenEngine(mavenHome, installationName, environment);
+	}
+
+	/**
+	 * Invokes the given Maven goals from the pom.xml file of the workspace, where the workspace lives
+	 * @param goals
+	 * @param workspace
+	 * @param output receives standard output and standard error, line by line
+	 * @return the exit code
+	 * @throws IOException if Maven could not be run
+	 * @throws InterruptedException
+	 */
+	public int execute(String goals, FilePath workspace, InvocationOutputHandler output)
+			throws IOException, InterruptedException {
+		try (LineOutputStream lines = new LineOutputStream(output)) {
+			int exitCode = workspace.act(new Invocation(this.mavenHome, goals, this.environment,
+					new RemoteOutputStream(lines)));
+			// Output sent by the node before the result may still be on its way
+			VirtualChannel channel = workspace.getChannel();
+			if (channel instanceof Channel) {
+				((Channel) channel).syncLocalIO();
+			}
+			if (exitCode != 0) {
+				System.out.println("Maven invocation error on command [" + goals + "] in directory: " + workspace.getRemote());
+			}
+			return exitCode;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Maven from "
+				+ (this.installationName != null ? this.installationName + " (" + this.mavenHome + ")" : this.mavenHome);
+	}
+
+	/**
+	 * Runs Maven through the Invoker on the node holding the workspace, writing its output to a stream of the caller
+	 */
+	private static class Invocation extends MasterToSlaveFileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final String mavenHome;
+		private final String goals;
+		private final Map<String, String> environment;
+		private final OutputStream output;
+
+		Invocation(String mavenHome, String goals, Map<String, String> environment, OutputStream output) {
+			this.mavenHome = mavenHome;
+			this.goals = goals;
+			this.environment = environment;
+			this.output = output;
+		}
+
+		@Override
+		public Integer invoke(File workingDirectory, VirtualChannel channel) throws IOException, InterruptedException {
+			InvocationRequest request = new DefaultInvocationRequest();
+			request.setPomFile(new File(workingDirectory, "pom.xml"));
+			request.setGoals(Collections.singletonList(this.goals));
+			// No interactive prompts or progress display in the build log
+			request.setBatchMode(true);
+			for (Map.Entry<String, String> variable : this.environment.entrySet()) {
+				request.addShellEnvironment(variable.getKey(), variable.getValue());
+			}
+			Invoker invoker = new DefaultInvoker();
+			// Lines are handed over as they are produced, standard error included
+			InvocationOutputHandler handler = new InvocationOutputHandler() {
+				@Override
+				public void consumeLine(String line) throws IOException {
+					synchronized (Invocation.this.output) {
+						Invocation.this.output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+					}
+				}
+			};
+			invoker.setOutputHandler(handler);
+			invoker.setErrorHandler(handler);
+			invoker.setMavenHome(new File(this.mavenHome));
+			try {
+				InvocationResult invocationResult = invoker.execute(request);
+				if (invocationResult.getExecutionException() != null) {
+					throw new IOException("Could not run Maven", invocationResult.getExecutionException());
+				}
+				return invocationResult.getExitCode();
+			} catch (MavenInvocationException e) {
+				throw new IOException(e);
+			} finally {
+				this.output.close();
+			}
+		}
+	}
+
+	/**
+	 * Hands the lines written to it to an output handler
+	 */
+	private static class LineOutputStream extends LineTransformationOutputStream {
+		private final InvocationOutputHandler output;
+
+		LineOutputStream(InvocationOutputHandler output) {
+			this.output = output;
+		}
+
+		@Override
+		protected void eol(byte[] b, int len) throws IOException {
+			this.output.consumeLine(trimEOL(new String(b, 0, len, StandardCharsets.UTF_8)));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package cs685.test.selection;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.maven.shared.invoker.InvocationOutputHandler;
+
+import hudson.Util;
+
+/**
+ * Receives the output of a Maven invocation line by line, without ever holding all of it<br>
+ * Each line is streamed to the build log and to a gzipped log file, and only the last lines are kept in a
+ * ring buffer for the report, so memory stays flat however long the run is
+ *
+ */
+public class MavenOutput implements InvocationOutputHandler, Closeable {
+	// Longer lines are truncated in the tail, they are kept whole in the log file
+	private static final int MAX_TAIL_LINE_LENGTH = 2000;
+	// Line surefire prints when it starts the first test class, possibly after a log level or shard prefix
+	private static final Pattern FIRST_TEST = Pattern.compile("(^|\\s)Running [\\w.$]+$");
+
+	private final PrintStream log;
+	private final File file;
+	private final Writer writer;
+	private final String[] tail;
+	private long lines;
+	private long start;
+	private long firstTestNanos = -1;
+
+	/**
+	 * @param log the build log
+	 * @param file the gzipped log file to write
+	 * @param tailLines number of lines kept for the report
+	 * @throws IOException
+	 */
+	public MavenOutput(PrintStream log, File file, int tailLines) throws IOException {
+		this.log = log;
+		this.file = file;
+		this.writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)),
+				StandardCharsets.UTF_8));
+		this.tail = new String[tailLines];
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Called by the invoker for each line of standard output and standard error, possibly from two threads
+	 */
+	@Override
+	public synchronized void consumeLine(String line) {
+		this.log.println(line);
+		try {
+			this.writer.write(line);
+			this.writer.write('\n');
+		} catch (IOException e) {
+			// The build log still has the line
+			System.out.println("ERROR: could not write Maven output to " + this.file + ": " + e);
+		}
+		this.tail[(int) (this.lines % this.tail.length)] = line.length() > MAX_TAIL_LINE_LENGTH
+				? line.substring(0, MAX_TAIL_LINE_LENGTH) + "..."
+				: line;
+		this.lines++;
+		if (this.firstTestNanos < 0 && FIRST_TEST.matcher(line).find()) {
+			this.firstTestNanos = System.nanoTime() - this.start;
+		}
+	}
+
+	/**
+	 * Adds a line of our own, such as an error, to the output
+	 * @param line
+	 */
+	public void note(String line) {
+		consumeLine("[test-selection] " + line);
+	}
+
+	public synchronized long getLines() {
+		return this.lines;
+	}
+
+	/**
+	 * Measures the first test latency from now on, for invocations launched after others whose time is
+	 * reported apart, such as a compilation
+	 */
+	public synchronized void restartClock() {
+		this.start = System.nanoTime();
+		this.firstTestNanos = -1;
+	}
+
+	/**
+	 * Time from the creation of this output (or the last restartClock), just before Maven is launched, to
+	 * the first test class surefire started: the startup cost of the invocation
+	 * @return the time in nanoseconds, -1 if no test was started
+	 */
+	public synchronized long getFirstTestNanos() {
+		return this.firstTestNanos;
+	}
+
+	/**
+	 * The last lines of the output, HTML escaped and separated by line breaks, for the report
+	 * @return
+	 */
+	public synchronized String getTailHtml() {
+		StringBuilder html = new StringBuilder();
+		long first = Math.max(0, this.lines - this.tail.length);
+		if (first > 0) {
+			html.append("<em>").append(first).append(" earlier lines omitted, see ").append(Util.escape(this.file.getName()))
+					.append("</em><br/>");
+		}
+		for (long i = first; i < this.lines; i++) {
+			html.append(Util.escape(this.tail[(int) (i % this.tail.length)])).append("<br/>");
+		}
+		return html.toString();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.writer.close();
+	}
+}
@@ -0,0 +1,223 @@
+package cs685.test.selection;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cs685.test.selection.ir.SelectedTest;
+import hudson.Util;
+import jenkins.model.Jenkins;
+
+/**
+ * Persistent cache of the tests selected for a commit range, so retried and re-triggered builds of the
+ * same range skip the diff, the queries and the searches<br>
+ * Entries are keyed by the previous and current revisions, the generation of the index and the settings
+ * the selection depends on, one file per entry under $JENKINS_HOME/selectionCache/&lt;project&gt;.
+ * Each project keeps at most MAX_ENTRIES entries, and entries older than MAX_AGE_HOURS are ignored and removed
+ *
+ */
+public class SelectionCache {
+	private static final String PROPERTY_PREFIX = SelectionCache.class.getName() + ".";
+	private static final int MAX_ENTRIES = Integer.getInteger(PROPERTY_PREFIX + "maxEntries", 64);
+	private static final long MAX_AGE_MILLIS = Long.getLong(PROPERTY_PREFIX + "maxAgeHours", 24L * 7) * 60 * 60 * 1000;
+	private static final String HEADER = "# test-selection selection cache v1";
+	private static final String ENTRY_SUFFIX = ".txt";
+	private static final String KEY_RECORD = "key";
+	private static final String CUTOFF_RECORD = "cutoff";
+	private static final String CHANGED_FILE_RECORD = "changed";
+	private static final String TEST_RECORD = "test";
+	private static final String SOURCE_SEPARATOR = ";";
+
+	private SelectionCache() {
+	}
+
+	/**
+	 * Builds the key of a selection
+	 * @param previousRevision null if the changes are from the empty tree
+	 * @param currentRevision
+	 * @param indexGeneration
+	 * @param settings every setting the selection depends on
+	 * @return
+	 */
+	public static String key(String previousRevision, String currentRevision, long indexGeneration, String settings) {
+		return (previousRevision == null ? "none" : previousRevision) + ".." + currentRevision + " generation="
+				+ indexGeneration + " " + settings;
+	}
+
+	private static File getEntryFile(String projectName, String key) {
+		return new File(getProjectDir(projectName), Util.getDigestOf(key) + ENTRY_SUFFIX);
+	}
+
+	private static File getProjectDir(String projectName) {
+		return new File(new File(Jenkins.getInstance().getRootDir(), "selectionCache"), projectName);
+	}
+
+	/**
+	 * Returns the selection cached with the given key, or null if there is none or it is too old<br>
+	 * An entry that is too old is deleted
+	 * @param projectName
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized Entry get(String projectName, String key) throws IOException {
+		File file = getEntryFile(projectName, key);
+		if (!file.isFile()) {
+			return null;
+		}
+		if (System.currentTimeMillis() - file.lastModified() > MAX_AGE_MILLIS) {
+			if (!file.delete()) {
+				System.out.println("Could not remove selection cache entry " + file.getAbsolutePath());
+			}
+			return null;
+		}
+		Entry entry = new Entry(new ArrayList<SelectedTest>(), new ArrayList<String>(), "");
+		try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String header = br.readLine();
+			if (!HEADER.equals(header)) {
+				System.out.println("Ignoring selection cache entry with unknown header: [" + header + "]");
+				return null;
+			}
+			for (String line; (line = br.readLine()) != null;) {
+				String[] parts = line.split("\t", -1);
+				if (parts[0].equals(KEY_RECORD) && parts.length == 2) {
+					// Guards against digest collisions
+					if (!parts[1].equals(key)) {
+						return null;
+					}
+				} else if (parts[0].equals(CUTOFF_RECORD) && parts.length == 2) {
+					entry.cutoff = parts[1];
+				} else if (parts[0].equals(CHANGED_FILE_RECORD) && parts.length == 2) {
+					entry.changedFiles.add(parts[1]);
+				} else if (parts[0].equals(TEST_RECORD) && parts.length == 6) {
+					List<String> sources = parts[5].isEmpty()
+							? new ArrayList<String>()
+							: new ArrayList<String>(Arrays.asList(parts[5].split(SOURCE_SEPARATOR)));
+					try {
+						entry.tests.add(new SelectedTest(parts[1], parts[2], parts[3], Float.parseFloat(parts[4]), sources));
+					} catch (NumberFormatException e) {
+						System.out.println("Ignoring malformed selection cache line: [" + line + "]");
+						return null;
+					}
+				} else {
+					System.out.println("Ignoring malformed selection cache line: [" + line + "]");
+					return null;
+				}
+			}
+		}
+		entry.cached = true;
+		return entry;
+	}
+
+	/**
+	 * Caches a selection, then removes the entries that are too old or beyond MAX_ENTRIES, oldest first
+	 * @param projectName
+	 * @param key
+	 * @param entry
+	 * @throws IOException
+	 */
+	public static synchronized void put(String projectName, String key, Entry entry) throws IOException {
+		File dir = getProjectDir(projectName);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir.getAbsolutePath());
+		}
+		File file = getEntryFile(projectName, key);
+		File tmp = new File(dir, file.getName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.newLine();
+			writer.write(KEY_RECORD + "\t" + key);
+			writer.newLine();
+			writer.write(CUTOFF_RECORD + "\t" + entry.getCutoff());
+			writer.newLine();
+			for (String changedFile : entry.getChangedFiles()) {
+				writer.write(CHANGED_FILE_RECORD + "\t" + changedFile);
+				writer.newLine();
+			}
+			for (SelectedTest test : entry.getTests()) {
+				writer.write(TEST_RECORD + "\t" + test.getClassName() + "\t" + test.getMethodName() + "\t"
+						+ test.getParameters() + "\t" + Float.toString(test.getScore()) + "\t"
+						+ String.join(SOURCE_SEPARATOR, test.getSources()));
+				writer.newLine();
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		evict(dir);
+	}
+
+	private static void evict(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(ENTRY_SUFFIX)) {
+				entries.add(file);
+			}
+		}
+		// Newest first
+		final long now = System.currentTimeMillis();
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		for (int i = 0; i < entries.size(); i++) {
+			File file = entries.get(i);
+			if ((i >= MAX_ENTRIES || now - file.lastModified() > MAX_AGE_MILLIS) && !file.delete()) {
+				System.out.println("Could not remove selection cache entry " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * A selection: the ranked candidate tests, the changed files they were selected for, and the cutoff applied
+	 */
+	public static class Entry {
+		private final List<SelectedTest> tests;
+		private final List<String> changedFiles;
+		private String cutoff;
+		private boolean cached;
+
+		public Entry(List<SelectedTest> tests, List<String> changedFiles, String cutoff) {
+			this.tests = tests;
+			this.changedFiles = changedFiles;
+			this.cutoff = cutoff;
+		}
+
+		public List<SelectedTest> getTests() {
+			return this.tests;
+		}
+
+		public List<String> getChangedFiles() {
+			return this.changedFiles;
+		}
+
+		/**
+		 * Description of the score cutoff and how many hits it kept
+		 * @return
+		 */
+		public String getCutoff() {
+			return this.cutoff;
+		}
+
+		/**
+		 * True if the entry was read from the cache rather than computed by this build
+		 * @return
+		 */
+		public boolean isCached() {
+			return this.cached;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package cs685.test.selection;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import cs685.test.selection.ir.SelectedTest;
+import jenkins.model.Jenkins;
+
+/**
+ * Persistent record of how each test of a project ran: how long it takes, how recently it failed, and
+ * which changed files it failed with<br>
+ * Durations are read from the surefire reports after every build and smoothed with an exponentially
+ * weighted moving average, so a single slow run does not exclude a test for good. Failures decay by
+ * FAILURE_DECAY with every build, so the history forgets old breakages: co-failures under
+ * MIN_CO_FAILURE are dropped, and each file keeps at most MAX_CO_FAILURES_PER_FILE tests, which bounds
+ * the store. Tests are keyed by Class.method with the simple class name, as selected and passed to surefire<br>
+ * A loaded history is kept in memory until the file changes, and is never modified once published,
+ * so every build can read it cheaply
+ *
+ */
+public class TestHistory {
+	private static final String HISTORY_FILENAME = "history.txt";
+	private static final String HEADER = "# test-selection test history v2";
+	private static final String TEST_RECORD = "T";
+	private static final String CO_FAILURE_RECORD = "C";
+	// Weight of the latest run in the moving average
+	private static final double SMOOTHING = 0.3;
+	// Weight kept by past failures at each build
+	private static final double FAILURE_DECAY = 0.8;
+	private static final double MIN_CO_FAILURE = 0.05;
+	private static final int MAX_CO_FAILURES_PER_FILE = 50;
+
+	private static final Map<String, TestHistory> LOADED = new HashMap<String, TestHistory>();
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	// Changed file -> test -> decayed number of builds in which the test failed with the file changed
+	private final Map<String, Map<String, Double>> coFailures = new HashMap<String, Map<String, Double>>();
+	private long lastModified;
+
+	private TestHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * A history of the given tests that is never saved
+	 * @param entries
+	 */
+	TestHistory(Map<String, Entry> entries) {
+		this.file = null;
+		this.entries.putAll(entries);
+	}
+
+	/**
+	 * A copy of the history, which can be modified without affecting the builds reading it
+	 * @param history
+	 */
+	private TestHistory(TestHistory history) {
+		this.file = history.file;
+		this.entries.putAll(history.entries);
+		for (Map.Entry<String, Map<String, Double>> e : history.coFailures.entrySet()) {
+			this.coFailures.put(e.getKey(), new HashMap<String, Double>(e.getValue()));
+		}
+	}
+
+	/**
+	 * Directory holding the history of a project, next to its index
+	 * @param projectName
+	 * @return
+	 */
+	private static File getHistoryFile(String projectName) {
+		return new File(new File(new File(Jenkins.getInstance().getRootDir(), "testHistory"), projectName),
+				HISTORY_FILENAME);
+	}
+
+	/**
+	 * Loads the history of a project, or returns the one already loaded if the file did not change<br>
+	 * Returns an empty history if none exists or it was written in an unknown format.
+	 * The history returned must not be modified
+	 * @param projectName
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized TestHistory load(String projectName) throws IOException {
+		File file = getHistoryFile(projectName);
+		TestHistory loaded = LOADED.get(projectName);
+		if (loaded != null && loaded.lastModified == file.lastModified()) {
+			return loaded;
+		}
+		TestHistory history = new TestHistory(file);
+		history.lastModified = file.lastModified();
+		LOADED.put(projectName, history);
+		if (!file.isFile()) {
+			return history;
+		}
+		try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String header = br.readLine();
+			if (!HEADER.equals(header)) {
+				System.out.println("Ignoring test history with unknown header: [" + header + "]");
+				return history;
+			}
+			for (String line; (line = br.readLine()) != null;) {
+				String[] parts = line.split("\t", -1);
+				try {
+					if (parts.length == 5 && parts[0].equals(TEST_RECORD)) {
+						history.entries.put(parts[1], new Entry(Double.parseDouble(parts[2]), Integer.parseInt(parts[3]),
+								Double.parseDouble(parts[4])));
+						continue;
+					} else if (parts.length == 4 && parts[0].equals(CO_FAILURE_RECORD)) {
+						history.getCoFailures(parts[1]).put(parts[2], Double.parseDouble(parts[3]));
+						continue;
+					}
+				} catch (NumberFormatException e) {
+					// Reported below
+				}
+				System.out.println("Ignoring malformed test history line: [" + line + "]");
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Adds the results of a build to the history of a project, and saves it<br>
+	 * The history is loaded again first, so concurrent builds of the project do not lose each other's runs
+	 * @param projectName
+	 * @param durations seconds taken by each test that ran, keyed by Class.method
+	 * @param failed the tests that failed or errored, keyed by Class.method
+	 * @param changedFiles the files changed by the build
+	 * @throws IOException
+	 */
+	public static synchronized void record(String projectName, Map<String, Double> durations,
+			Collection<String> failed, Collection<String> changedFiles) throws IOException {
+		if (durations.isEmpty() && failed.isEmpty()) {
+			return;
+		}
+		TestHistory history = new TestHistory(load(projectName));
+		// Every past failure fades, whether or not its test ran again
+		for (Map.Entry<String, Entry> e : history.entries.entrySet()) {
+			Entry entry = e.getValue();
+			e.setValue(new Entry(entry.getDuration(), entry.getRuns(), entry.getFailures() * FAILURE_DECAY));
+		}
+		for (Map.Entry<String, Double> e : durations.entrySet()) {
+			Entry entry = history.entries.get(e.getKey());
+			if (entry == null || entry.getRuns() == 0) {
+				history.entries.put(e.getKey(), new Entry(e.getValue(), 1, entry == null ? 0 : entry.getFailures()));
+			} else {
+				history.entries.put(e.getKey(), new Entry(
+						SMOOTHING * e.getValue() + (1 - SMOOTHING) * entry.getDuration(), entry.getRuns() + 1,
+						entry.getFailures()));
+			}
+		}
+		for (String test : failed) {
+			Entry entry = history.entries.get(test);
+			history.entries.put(test, entry == null
+					? new Entry(0, 0, 1)
+					: new Entry(entry.getDuration(), entry.getRuns(), entry.getFailures() + 1));
+		}
+		history.recordCoFailures(failed, changedFiles);
+		history.save();
+		LOADED.put(projectName, history);
+		System.out.println("Recorded " + Integer.toString(durations.size()) + " test durations and "
+				+ Integer.toString(failed.size()) + " failures, history has " + Integer.toString(history.size())
+				+ " tests and co-failures for " + Integer.toString(history.coFailures.size()) + " files");
+	}
+
+	/**
+	 * Decays every co-failure, adds those of the build, then drops the faded and least frequent ones
+	 * @param failed
+	 * @param changedFiles
+	 */
+	private void recordCoFailures(Collection<String> failed, Collection<String> changedFiles) {
+		for (String changedFile : changedFiles) {
+			Map<String, Double> tests = getCoFailures(changedFile);
+			for (String test : failed) {
+				// Decayed below with every other co-failure
+				Double score = tests.get(test);
+				tests.put(test, (score == null ? 0 : score) + 1 / FAILURE_DECAY);
+			}
+		}
+		for (Iterator<Map<String, Double>> files = this.coFailures.values().iterator(); files.hasNext();) {
+			final Map<String, Double> tests = files.next();
+			for (Iterator<Map.Entry<String, Double>> it = tests.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Double> e = it.next();
+				e.setValue(e.getValue() * FAILURE_DECAY);
+				if (e.getValue() < MIN_CO_FAILURE) {
+					it.remove();
+				}
+			}
+			if (tests.size() > MAX_CO_FAILURES_PER_FILE) {
+				List<String> ranked = new ArrayList<String>(tests.keySet());
+				Collections.sort(ranked, new Comparator<String>() {
+					@Override
+					public int compare(String a, String b) {
+						return Double.compare(tests.get(b), tests.get(a));
+					}
+				});
+				tests.keySet().retainAll(ranked.subList(0, MAX_CO_FAILURES_PER_FILE));
+			}
+			if (tests.isEmpty()) {
+				files.remove();
+			}
+		}
+	}
+
+	private Map<String, Double> getCoFailures(String changedFile) {
+		Map<String, Double> tests = this.coFailures.get(changedFile);
+		if (tests == null) {
+			tests = new HashMap<String, Double>();
+			this.coFailures.put(changedFile, tests);
+		}
+		return tests;
+	}
+
+	/**
+	 * Writes the history to disk, replacing the previous version atomically
+	 * @throws IOException
+	 */
+	private void save() throws IOException {
+		File dir = this.file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir.getAbsolutePath());
+		}
+		File tmp = new File(dir, HISTORY_FILENAME + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.newLine();
+			for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+				writer.write(TEST_RECORD);
+				writer.write('\t');
+				writer.write(e.getKey());
+				writer.write('\t');
+				writer.write(Double.toString(e.getValue().getDuration()));
+				writer.write('\t');
+				writer.write(Integer.toString(e.getValue().getRuns()));
+				writer.write('\t');
+				writer.write(Double.toString(e.getValue().getFailures()));
+				writer.newLine();
+			}
+			for (Map.Entry<String, Map<String, Double>> file : this.coFailures.entrySet()) {
+				for (Map.Entry<String, Double> e : file.getValue().entrySet()) {
+					writer.write(CO_FAILURE_RECORD);
+					writer.write('\t');
+					writer.write(file.getKey());
+					writer.write('\t');
+					writer.write(e.getKey());
+					writer.write('\t');
+					writer.write(Double.toString(e.getValue()));
+					writer.newLine();
+				}
+			}
+		}
+		Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		this.lastModified = this.file.lastModified();
+	}
+
+	public Entry get(String test) {
+		return this.entries.get(test);
+	}
+
+	/**
+	 * How likely a test is to break with the given changes, from 0 to 1: its recent failures, plus how
+	 * often it failed when the same files changed
+	 * @param test Class.method
+	 * @param changedFiles
+	 * @return
+	 */
+	public double getFailureEvidence(String test, Collection<String> changedFiles) {
+		Entry entry = this.entries.get(test);
+		double evidence = entry == null ? 0 : entry.getFailures();
+		for (String changedFile : changedFiles) {
+			Map<String, Double> tests = this.coFailures.get(changedFile);
+			if (tests != null) {
+				Double score = tests.get(test);
+				evidence += score == null ? 0 : score;
+			}
+		}
+		return Math.min(1, evidence);
+	}
+
+	/**
+	 * Boosts the score of the candidates likely to break, by up to (1 + boost) times, and ranks them again
+	 * @param candidates
+	 * @param changedFiles
+	 * @param boost 0 leaves the candidates as they are
+	 * @return
+	 */
+	public List<SelectedTest> boost(List<SelectedTest> candidates, Collection<String> changedFiles, double boost) {
+		if (boost <= 0) {
+			return candidates;
+		}
+		List<SelectedTest> boosted = new ArrayList<SelectedTest>();
+		int count = 0;
+		for (SelectedTest candidate : candidates) {
+			double evidence = getFailureEvidence(candidate.getName(), changedFiles);
+			if (evidence > 0) {
+				count++;
+			}
+			boosted.add(new SelectedTest(candidate.getClassName(), candidate.getMethodName(), candidate.getParameters(),
+					(float) (candidate.getScore() * (1 + boost * evidence)), candidate.getSources()));
+		}
+		// Stable, so candidates without evidence keep their order
+		Collections.sort(boosted, new Comparator<SelectedTest>() {
+			@Override
+			public int compare(SelectedTest a, SelectedTest b) {
+				return Float.compare(b.getScore(), a.getScore());
+			}
+		});
+		System.out.println("Boosted " + Integer.toString(count) + " of " + Integer.toString(candidates.size())
+				+ " candidates with failure history");
+		return boosted;
+	}
+
+	/**
+	 * Mean duration in seconds of the tests that ran, or the given default if none did
+	 * @param defaultDuration
+	 * @return
+	 */
+	public double getMeanDuration(double defaultDuration) {
+		double total = 0;
+		int count = 0;
+		for (Entry entry : this.entries.values()) {
+			if (entry.getRuns() > 0) {
+				total += entry.getDuration();
+				count++;
+			}
+		}
+		return count == 0 ? defaultDuration : total / count;
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * What is known about a single test
+	 */
+	public static class Entry {
+		private final double duration;
+		private final int runs;
+		private final double failures;
+
+		public Entry(double duration, int runs, double failures) {
+			this.duration = duration;
+			this.runs = runs;
+			this.failures = failures;
+		}
+
+		/**
+		 * Smoothed duration in seconds, meaningless if the test never ran
+		 * @return
+		 */
+		public double getDuration() {
+			return this.duration;
+		}
+
+		public int getRuns() {
+			return this.runs;
+		}
+
+		/**
+		 * Decayed number of builds in which the test failed
+		 * @return
+		 */
+		public double getFailures() {
+			return this.failures;
+		}
+	}
+}
@@ -1,41 +1,55 @@
 package cs685.test.selection;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
 import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.RevisionSyntaxException;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 import com.github.jenkins.lastchanges.LastChangesBuildAction;
 import com.github.jenkins.lastchanges.impl.GitLastChanges;
-import com.github.jenkins.lastchanges.model.CommitChanges;
-import com.github.jenkins.lastchanges.model.CommitInfo;
-import com.github.jenkins.lastchanges.model.LastChanges;
 
+import cs685.test.selection.ir.ChangedFile;
 import hudson.FilePath;
 import hudson.model.AbstractBuild;
 
 /**
- * 
+ *
  * @author Ryan
  *
  */
-public class TestSelection {
+public class TestSelection implements Closeable {
+    // What DiffFormatter uses unless the repository configures another
+    private static final DiffAlgorithm DIFF_ALGORITHM =
+    		DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.HISTOGRAM);
 
     private Repository gitRepository;
-    private LastChanges lastChanges;
-    
+    private ObjectId currentRevision;
+    private ObjectId previousRevision;
+
     /**
-     * Object to get the last changes between two commits given the Git repo in the workspace directory
-     * @param map
+     * Object to get the last changes between two commits given the Git repo in the workspace directory<br>
+     * The changes are since the revision of the last successful build, or since the parent of the current
+     * revision if there is none. The repository stays open until close
      * @param workspaceDir
      * @param build
      * @throws RevisionSyntaxException
@@ -45,9 +59,18 @@ public class TestSelection {
      */
     public TestSelection(FilePath workspaceDir, AbstractBuild build) throws RevisionSyntaxException, AmbiguousObjectException, IncorrectObjectTypeException, IOException {
         this.gitRepository = GitLastChanges.repository(workspaceDir.getRemote() + "/.git");
-        
+        try {
+        	resolveRevisions(workspaceDir, build);
+        } catch (IOException | RuntimeException e) {
+        	close();
+        	throw e;
+        }
+    }
+
+    private void resolveRevisions(FilePath workspaceDir, AbstractBuild build) throws IOException {
         System.out.println("git repo: " + workspaceDir.getRemote());
-        
+        this.currentRevision = gitRepository.resolve("HEAD");
+
         // Checks if this Jenkins project had a previous successful build (with this plugin enabled)
         boolean hasSuccessfulBuild = build.getParent().getLastSuccessfulBuild() != null;
         if (hasSuccessfulBuild) {
@@ -56,97 +79,111 @@ public class TestSelection {
             LastChangesBuildAction action = build.getParent().getLastSuccessfulBuild().getAction(LastChangesBuildAction.class);
             if (action != null && action.getBuildChanges().getCurrentRevision() != null) {
             	System.out.println("Action and CurrentRevision are not null!");
-                String targetRevision = action.getBuildChanges().getCurrentRevision().getCommitId();
-                // Compares current repository revision with provided revision
-                this.lastChanges = GitLastChanges.getInstance().changesOf(gitRepository, GitLastChanges.getInstance().resolveCurrentRevision(gitRepository), gitRepository.resolve(targetRevision));
-                List<CommitInfo> commitInfoList = GitLastChanges.getInstance().getCommitsBetweenRevisions(
-                		gitRepository,
-                		gitRepository.resolve(lastChanges.getCurrentRevision().getCommitId()),
-                        gitRepository.resolve(targetRevision)); 
-                lastChanges.addCommits(this.commitChanges(commitInfoList, lastChanges.getPreviousRevision().getCommitId()));
+                this.previousRevision = gitRepository.resolve(action.getBuildChanges().getCurrentRevision().getCommitId());
             } else {
-            	// LastChangesPublisher.java does not have an else here, can we get here?
             	System.out.println("Possible error to get here, action or currentrevision are null");
-            	// Compare current repository revision with previous one just in case
-            	this.lastChanges = GitLastChanges.getInstance().changesOf(gitRepository);
-                this.lastChanges.addCommit(new CommitChanges(lastChanges.getCurrentRevision(), lastChanges.getDiff()));
             }
         } else {
         	System.out.println("We've had no previously successful build!");
-        	// Compares current repository revision with previous one
-            this.lastChanges = GitLastChanges.getInstance().changesOf(gitRepository);
-            this.lastChanges.addCommit(new CommitChanges(lastChanges.getCurrentRevision(), lastChanges.getDiff()));
         }
-    }
-    
-    /**
-     * Private method taken from LastChangesPublisher.java and modified
-     * 
-     * @param commitInfoList
-     * @param oldestCommit
-     * @return
-     */
-    private List<CommitChanges> commitChanges(List<CommitInfo> commitInfoList, String oldestCommit) {
-    	if (commitInfoList == null || commitInfoList.isEmpty()) {
-    		if (commitInfoList == null) {
-    			System.out.println("Our commitInfoList is null!");
-    		} 
-    		else if (commitInfoList.isEmpty()) {
-    			System.out.println("Our commitInfoList is empty!");
-    		}
-            return null;
-        }
-        List<CommitChanges> commitChanges = new ArrayList<>();
-        try {
-        	// Sort CommitInfo list based on custom Comparator
-            Collections.sort(commitInfoList, new Comparator<CommitInfo>() {
-                @Override
-                public int compare(CommitInfo c1, CommitInfo c2) {
-                    try {
-                        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT);
-                        return format.parse(c1.getCommitDate()).compareTo(format.parse(c2.getCommitDate()));
-                    } catch (ParseException e) {
-                        System.out.println(String.format("Could not parse commit dates %s and %s ", c1.getCommitDate(), c2.getCommitDate()));
-                        return 0;
-                    }
-                }
-            });
-
-            System.out.println("Iterate over commitInfoList:");
-            for (int i = commitInfoList.size() - 1; i >= 0; i--) {
-                LastChanges lastChanges = null;
-                ObjectId previousCommit = gitRepository.resolve(commitInfoList.get(i).getCommitId() + "^1");
-                lastChanges = GitLastChanges.getInstance().
-                        changesOf(gitRepository, gitRepository.resolve(commitInfoList.get(i).getCommitId()), previousCommit);
-                
-                String diff = lastChanges != null ? lastChanges.getDiff() : "";
-                System.out.println("diff[" + Integer.toString(i) + "] = " + diff);
-                commitChanges.add(new CommitChanges(commitInfoList.get(i), diff));
-            }
-
-        } catch (Exception e) {
-            System.out.println("Could not get commit changes.");
-            e.printStackTrace();
+        if (this.previousRevision == null) {
+        	// Compare current repository revision with previous one
+        	this.previousRevision = gitRepository.resolve("HEAD^1");
         }
+        System.out.println("Changes from " + (previousRevision == null ? "the empty tree" : previousRevision.name())
+        		+ " to " + currentRevision.name());
+    }
 
-        return commitChanges;
+    public ObjectId getCurrentRevision() {
+    	return currentRevision;
     }
 
     /**
-     * Returns the List of CommitChanges objects
+     * Revision the changes are taken from, null if the current revision has no parent
      * @return
      */
-	public List<CommitChanges> getChanges() {
-		return lastChanges.getCommits();
+    public ObjectId getPreviousRevision() {
+    	return previousRevision;
+    }
+
+	/**
+	 * Returns the changed Java files between the two revisions<br>
+	 * The trees are compared by JGit, keeping only .java paths and detecting renames, and the edits of each
+	 * file are turned straight into changed ranges: no unified diff text is ever produced. Each version of
+	 * a file is read once, for both the diff and the changed text
+	 * @return
+	 * @throws IOException
+	 */
+	public List<ChangedFile> getChangedFiles() throws IOException {
+		long start = System.nanoTime();
+		List<ChangedFile> changedFiles = new ArrayList<ChangedFile>();
+		int ranges = 0;
+		try (RevWalk walk = new RevWalk(gitRepository);
+				ObjectReader reader = gitRepository.newObjectReader();
+				DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+			formatter.setRepository(gitRepository);
+			formatter.setPathFilter(PathSuffixFilter.create(".java"));
+			formatter.setDetectRenames(true);
+			List<DiffEntry> entries = formatter.scan(treeOf(walk, reader, previousRevision),
+					treeOf(walk, reader, currentRevision));
+			for (DiffEntry entry : entries) {
+				if (entry.getChangeType() == DiffEntry.ChangeType.DELETE) {
+					continue;
+				}
+				ChangedFile changedFile = new ChangedFile(entry.getNewPath());
+				// One file at a time
+				byte[] oldContent = entry.getChangeType() == DiffEntry.ChangeType.ADD
+						? new byte[0]
+						: reader.open(entry.getOldId().toObjectId()).getCachedBytes();
+				byte[] newContent = reader.open(entry.getNewId().toObjectId()).getCachedBytes();
+				if (!RawText.isBinary(oldContent) && !RawText.isBinary(newContent)) {
+					RawText newText = new RawText(newContent);
+					for (Edit edit : DIFF_ALGORITHM.diff(RawTextComparator.DEFAULT, new RawText(oldContent), newText)) {
+						changedFile.addRange(toChangedRange(edit, newText));
+					}
+				}
+				ranges += changedFile.getRanges().size();
+				changedFiles.add(changedFile);
+			}
+		}
+		System.out.println("Found " + Integer.toString(ranges) + " changed ranges in " + Integer.toString(changedFiles.size())
+				+ " Java files in " + Long.toString((System.nanoTime() - start) / 1000000) + " ms");
+		return changedFiles;
 	}
-	
+
+	@Override
+	public void close() {
+		this.gitRepository.close();
+	}
+
+	/**
+	 * Returns an iterator over the tree of a revision, or the empty tree if there is no revision
+	 * @param walk
+	 * @param reader
+	 * @param revision
+	 * @return
+	 * @throws IOException
+	 */
+	private static AbstractTreeIterator treeOf(RevWalk walk, ObjectReader reader, ObjectId revision) throws IOException {
+		if (revision == null) {
+			return new EmptyTreeIterator();
+		}
+		RevCommit commit = walk.parseCommit(revision);
+		return new CanonicalTreeParser(null, reader, commit.getTree());
+	}
+
 	/**
-	 * Returns the DIFF file as a String between the two commits
+	 * Converts an edit to the (1 based, inclusive) lines of the new version it changed, with their text
+	 * @param edit
+	 * @param newText
 	 * @return
 	 */
-	public String getDifferences () {
-		System.out.println("Getting differences...");
-		System.out.println("getDiff: " + lastChanges.getDiff());
-		return lastChanges.getDiff();
+	private static ChangedFile.ChangedRange toChangedRange(Edit edit, RawText newText) {
+		if (edit.getLengthB() == 0) {
+			// Lines were only removed: span the lines before and after the removal
+			return new ChangedFile.ChangedRange(Math.max(1, edit.getBeginB()), edit.getBeginB() + 1, "");
+		}
+		return new ChangedFile.ChangedRange(edit.getBeginB() + 1, edit.getEndB(),
+				newText.getString(edit.getBeginB(), edit.getEndB(), false));
 	}
 }
@@ -1,7 +1,6 @@
 package cs685.test.selection;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -10,33 +9,42 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.maven.shared.invoker.DefaultInvocationRequest;
-import org.apache.maven.shared.invoker.DefaultInvoker;
 import org.apache.maven.shared.invoker.InvocationOutputHandler;
-import org.apache.maven.shared.invoker.InvocationRequest;
-import org.apache.maven.shared.invoker.InvocationResult;
-import org.apache.maven.shared.invoker.Invoker;
-import org.apache.maven.shared.invoker.MavenInvocationException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import cs685.test.selection.ir.ChangedFile;
+import cs685.test.selection.ir.CutoffMode;
+import cs685.test.selection.ir.IndexConfig;
+import cs685.test.selection.ir.IndexDirectoryType;
+import cs685.test.selection.ir.IndexManager;
 import cs685.test.selection.ir.InformationRetriever;
+import cs685.test.selection.ir.ScoreCutoff;
+import cs685.test.selection.ir.SelectedTest;
+import cs685.test.selection.ir.SourceFilter;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -45,9 +53,10 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
-import io.reflectoring.diffparser.api.DiffParser;
-import io.reflectoring.diffparser.api.UnifiedDiffParser;
-import io.reflectoring.diffparser.api.model.Diff;
+import hudson.tasks.Maven;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 
 /**
  * 
@@ -60,14 +69,287 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
     private static final String REPORT_TEMPLATE_PATH = "/results.html";
     private static final String PROJECT_NAME_VAR = "$PROJECT_NAME$";
     private static final String SELECTED_TESTS_VAR = "$SELECTED_TESTS$";
+    private static final String SELECTION_SUMMARY_VAR = "$SELECTION_SUMMARY$";
+    private static final String EXECUTION_SUMMARY_VAR = "$EXECUTION_SUMMARY$";
     private static final String MAVEN_OUTPUT_VAR = "$MAVEN_OUTPUT$";
     private static final String SUREFIRE_REPORTS_VAR = "$SUREFIRE_REPORTS$";
     private static final String SUREFIRE_DIRECTORY = "target/surefire-reports";
+    private static final String MAVEN_OUTPUT_ARTIFACT = "maven-output.log.gz";
+    // Lines of the Maven output shown in the report, the whole output is in MAVEN_OUTPUT_ARTIFACT
+    private static final int MAVEN_OUTPUT_TAIL_LINES = 500;
+    private static final int DEFAULT_MAX_SELECTED_TESTS = 25;
+    // Candidates ranked for each test that may be selected, so a time budget can trade slow tests for quick ones
+    // and failure history can promote tests from further down
+    private static final int CANDIDATES_FACTOR = 4;
+    
+    private int indexThreads;
+    private int maxInFlightFiles;
+    private double ramBufferMB;
+    private int commitBatchSize;
+    private boolean storeIndexContent;
+    private String indexDirectoryType;
+    private String sourcePatterns;
+    private int maxQueryClauses;
+    private int maxSelectedTests;
+    private int timeBudgetSeconds;
+    private double failureBoost;
+    private String cutoffMode;
+    private int cutoffFloor;
+    private int cutoffCeiling;
+    private double cutoffThreshold;
+    private int shards;
+    private String mavenName;
     
     @DataBoundConstructor
     public TestSelectionBuildWrapper() {
     }
 
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    /**
+     * Number of threads parsing Java files while indexing (0 uses one per core)
+     * @param indexThreads
+     */
+    @DataBoundSetter
+    public void setIndexThreads(int indexThreads) {
+        this.indexThreads = indexThreads;
+    }
+
+    public int getMaxInFlightFiles() {
+        return maxInFlightFiles;
+    }
+
+    /**
+     * Maximum number of files held in memory while indexing (0 uses the default)
+     * @param maxInFlightFiles
+     */
+    @DataBoundSetter
+    public void setMaxInFlightFiles(int maxInFlightFiles) {
+        this.maxInFlightFiles = maxInFlightFiles;
+    }
+
+    public double getRamBufferMB() {
+        return ramBufferMB;
+    }
+
+    /**
+     * Size of the Lucene RAM buffer in MB while indexing (0 uses the default)
+     * @param ramBufferMB
+     */
+    @DataBoundSetter
+    public void setRamBufferMB(double ramBufferMB) {
+        this.ramBufferMB = ramBufferMB;
+    }
+
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    /**
+     * Number of queued index updates after which the index is committed (0 commits once per build)
+     * @param commitBatchSize
+     */
+    @DataBoundSetter
+    public void setCommitBatchSize(int commitBatchSize) {
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    public boolean isStoreIndexContent() {
+        return storeIndexContent;
+    }
+
+    /**
+     * Stores the full content of each test document in the index (larger index, useful for debugging)
+     * @param storeIndexContent
+     */
+    @DataBoundSetter
+    public void setStoreIndexContent(boolean storeIndexContent) {
+        this.storeIndexContent = storeIndexContent;
+    }
+
+    public String getIndexDirectoryType() {
+        return indexDirectoryType;
+    }
+
+    /**
+     * Name of the IndexDirectoryType used by this job (empty uses the global default)
+     * @param indexDirectoryType
+     */
+    @DataBoundSetter
+    public void setIndexDirectoryType(String indexDirectoryType) {
+        this.indexDirectoryType = indexDirectoryType;
+    }
+
+    public String getSourcePatterns() {
+        return sourcePatterns;
+    }
+
+    /**
+     * Include and exclude (prefixed with !) glob patterns of the files to index (empty uses SourceFilter.getDefault())
+     * @param sourcePatterns
+     */
+    @DataBoundSetter
+    public void setSourcePatterns(String sourcePatterns) {
+        this.sourcePatterns = sourcePatterns;
+    }
+
+    public int getMaxQueryClauses() {
+        return maxQueryClauses;
+    }
+
+    /**
+     * Maximum number of term clauses in the query built from a hunk (0 uses the default)
+     * @param maxQueryClauses
+     */
+    @DataBoundSetter
+    public void setMaxQueryClauses(int maxQueryClauses) {
+        this.maxQueryClauses = maxQueryClauses;
+    }
+
+    public int getMaxSelectedTests() {
+        return maxSelectedTests;
+    }
+
+    /**
+     * Maximum number of tests selected across all changes, ranked by fused score (0 uses the default)
+     * @param maxSelectedTests
+     */
+    @DataBoundSetter
+    public void setMaxSelectedTests(int maxSelectedTests) {
+        this.maxSelectedTests = maxSelectedTests;
+    }
+
+    public int getTimeBudgetSeconds() {
+        return timeBudgetSeconds;
+    }
+
+    /**
+     * Wall-clock seconds the selected tests may take, estimated from their past durations (0 for no budget)
+     * @param timeBudgetSeconds
+     */
+    @DataBoundSetter
+    public void setTimeBudgetSeconds(int timeBudgetSeconds) {
+        this.timeBudgetSeconds = timeBudgetSeconds;
+    }
+
+    public double getFailureBoost() {
+        return failureBoost;
+    }
+
+    /**
+     * How much tests that recently failed, or failed with changes to the same files, are boosted: their score
+     * is multiplied by up to 1 + failureBoost (0 ranks by similarity only)
+     * @param failureBoost
+     */
+    @DataBoundSetter
+    public void setFailureBoost(double failureBoost) {
+        this.failureBoost = failureBoost;
+    }
+
+    public String getCutoffMode() {
+        return cutoffMode;
+    }
+
+    /**
+     * Name of the CutoffMode deciding how many hits of each query are kept (empty uses FIXED)
+     * @param cutoffMode
+     */
+    @DataBoundSetter
+    public void setCutoffMode(String cutoffMode) {
+        this.cutoffMode = cutoffMode;
+    }
+
+    public int getCutoffFloor() {
+        return cutoffFloor;
+    }
+
+    /**
+     * Minimum number of hits kept for each query (0 keeps at least one)
+     * @param cutoffFloor
+     */
+    @DataBoundSetter
+    public void setCutoffFloor(int cutoffFloor) {
+        this.cutoffFloor = cutoffFloor;
+    }
+
+    public int getCutoffCeiling() {
+        return cutoffCeiling;
+    }
+
+    /**
+     * Maximum number of hits collected for each query (0 uses the number of candidate tests)
+     * @param cutoffCeiling
+     */
+    @DataBoundSetter
+    public void setCutoffCeiling(int cutoffCeiling) {
+        this.cutoffCeiling = cutoffCeiling;
+    }
+
+    public double getCutoffThreshold() {
+        return cutoffThreshold;
+    }
+
+    /**
+     * Fraction of the top score used by the RELATIVE and GAP cutoff modes (0 uses the default of the mode)
+     * @param cutoffThreshold
+     */
+    @DataBoundSetter
+    public void setCutoffThreshold(double cutoffThreshold) {
+        this.cutoffThreshold = cutoffThreshold;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Number of concurrent Maven invocations the selected test classes are split into (0 or 1 runs them in one)
+     * @param shards
+     */
+    @DataBoundSetter
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public String getMavenName() {
+        return mavenName;
+    }
+
+    /**
+     * Name of the Maven installation, from the Jenkins tool configuration, running the tests (empty uses the first one)
+     * @param mavenName
+     */
+    @DataBoundSetter
+    public void setMavenName(String mavenName) {
+        this.mavenName = mavenName;
+    }
+
+    /**
+     * Builds the index settings from the job configuration
+     * @return
+     */
+    private IndexConfig getIndexConfig() {
+        IndexConfig config = new IndexConfig();
+        config.setIndexThreads(indexThreads);
+        config.setMaxInFlightFiles(maxInFlightFiles);
+        config.setRamBufferMB(ramBufferMB);
+        config.setCommitBatchSize(commitBatchSize);
+        config.setStoreContent(storeIndexContent);
+        config.setMaxQueryClauses(maxQueryClauses);
+        if (indexDirectoryType != null && !indexDirectoryType.isEmpty()) {
+            config.setDirectoryType(IndexDirectoryType.fromName(indexDirectoryType));
+        } else {
+            config.setDirectoryType(IndexDirectoryType.fromName(
+                    Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class).getDefaultIndexDirectoryType()));
+        }
+        if (sourcePatterns != null && !sourcePatterns.trim().isEmpty()) {
+            config.setSourceFilter(SourceFilter.parse(sourcePatterns));
+        }
+        return config;
+    }
+
     @Override
     public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener) {
         return new Environment() {
@@ -84,69 +366,44 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
             		throw new NullPointerException("TestGenerationBuildWrapper.setUp.tearDown: AbstractBuild.getWorkspace() object is null.");
             	}
             	
-            	// Get the selected tests
-            	// TODO: change n (5) to be a tunable parameter by the user
-            	int n = 5;
-            	Set<String> selectedTests = null;
-                try {
-					selectedTests = getSelectedTests(build.getWorkspace(), build, n);
-				} catch (ParseException e) {
-					System.out.println("Error while parsing Java project:");
-					e.printStackTrace();
-				}
+            	// Get the candidate tests, ranked across all changes and boosted by their failure history,
+            	// and keep those that fit in the time budget
+            	int k = maxSelectedTests > 0 ? maxSelectedTests : DEFAULT_MAX_SELECTED_TESTS;
+            	int candidates = timeBudgetSeconds > 0 || failureBoost > 0 ? k * CANDIDATES_FACTOR : k;
+            	String projectName = build.getWorkspace().getName();
+            	TestHistory history = TestHistory.load(projectName);
+            	ScoreCutoff cutoff = new ScoreCutoff(CutoffMode.fromName(cutoffMode), cutoffFloor,
+            			cutoffCeiling > 0 ? cutoffCeiling : candidates, (float) cutoffThreshold);
+            	SelectionCache.Entry selection = getSelectedTests(build.getWorkspace(), build, candidates, cutoff,
+            			getIndexConfig());
+            	List<String> changedFiles = selection.getChangedFiles();
+            	// The history changes with every build, so it is applied after the cache
+            	List<SelectedTest> rankedTests = history.boost(selection.getTests(), changedFiles, failureBoost);
+            	TimeBudgetSelector selector = new TimeBudgetSelector(history, timeBudgetSeconds);
+            	List<SelectedTest> selectedTests = selector.select(rankedTests, k);
+            	double estimatedSeconds = 0;
+            	for (SelectedTest selectedTest : selectedTests) {
+            		estimatedSeconds += selector.estimate(selectedTest);
+            	}
+            	String selectionSummary = Integer.toString(selectedTests.size()) + " tests, estimated "
+            			+ String.format("%.2f", estimatedSeconds) + " s"
+            			+ (timeBudgetSeconds > 0 ? " of a " + Integer.toString(timeBudgetSeconds) + " s budget" : "")
+            			+ "<br/>" + selection.getCutoff()
+            			+ "<br/>Selection cache: " + (selection.isCached() ? "hit" : "miss");
                 
-                // Split selected tests up by class
-                Map<String, List<String>> selectedTestsMapper = new HashMap<String, List<String>>();
-                for (String selectedTest : selectedTests) {
-                	String[] selectedTestSplit = selectedTest.split("\\.");
-                	if (selectedTestSplit.length != 2) {
-                		System.out.println("Error with selected test <class>.<method> name: [" + selectedTest + "]");
+                // Split selected tests up by class, in rank order
+                Map<String, List<String>> selectedTestsMapper = new LinkedHashMap<String, List<String>>();
+                for (SelectedTest selectedTest : selectedTests) {
+                	String className = selectedTest.getClassName();
+                	if (selectedTestsMapper.containsKey(className)) {
+                		selectedTestsMapper.get(className).add(selectedTest.getMethodName());
                 	} else {
-                		String className = selectedTestSplit[0];
-                		String methodName = selectedTestSplit[1];
-                		if (selectedTestsMapper.containsKey(className)) {
-                			selectedTestsMapper.get(className).add(methodName);
-                		} else {
-                			List<String> methods = new ArrayList<String>();
-                			methods.add(methodName);
-                			selectedTestsMapper.put(className, methods);
-                		}
+                		List<String> methods = new ArrayList<String>();
+                		methods.add(selectedTest.getMethodName());
+                		selectedTestsMapper.put(className, methods);
                 	}
                 }
                 
-                // Generate the Maven test selection string
-                StringBuilder testSelection = new StringBuilder();
-                int i = 0;
-                // Builds an output log of the mavenOutput
-				StringBuilder mavenOutput = new StringBuilder();
-		        String absolutePath = build.getWorkspace().getRemote();
-		        System.out.println(absolutePath);
-		        for (String className : selectedTestsMapper.keySet()) {
-		        	// Code for using maven-surefire 2.19+
-		        	testSelection.append(className).append("#");
-		        	testSelection.append(String.join("+", selectedTestsMapper.get(className)));
-		        	// Separate classes by comma (should work for maven-surefire 2.19+)
-		        	if (i+1 < selectedTestsMapper.keySet().size()) {
-		        		testSelection.append(",");	
-		        	}
-		        	i++;
-		        }
-		        System.out.println("Test selection string=[" + testSelection.toString() + "]");
-		        String command = "test -DfailIfNoTests=false -Dtest=" + testSelection.toString();
-		        try {
-					mavenOutput.append(runCommand(command, new File(absolutePath)));
-				} catch (MavenInvocationException e) {
-					mavenOutput.append("<font color=\"red\">MavenInvocationException</font>");
-					e.printStackTrace();
-				}
-		        
-		        // Generate a report and analyze the maven surefire reports
-				String report = generateReport(build.getProject().getDisplayName(), 
-						selectedTestsMapper, 
-						mavenOutput.toString(),
-						build.getWorkspace().getRemote());
-			
-				// Old method to generate the report
                 File artifactsDir = build.getArtifactsDir();
                 if (!artifactsDir.isDirectory()) {
                     boolean success = artifactsDir.mkdirs();
@@ -155,6 +412,67 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
                           + artifactsDir.getAbsolutePath());
                     }
                 }
+                
+		        String absolutePath = build.getWorkspace().getRemote();
+		        System.out.println(absolutePath);
+		        // Reports of earlier builds would be reported, and recorded in the history, again
+		        build.getWorkspace().child(SUREFIRE_DIRECTORY).deleteRecursive();
+		        // The Maven output goes to the build log and a compressed artifact as it is produced,
+		        // only its tail is kept for the report
+		        MavenEngine engine = MavenEngine.resolve(mavenName, build, listener);
+		        String mavenOutputTail;
+		        String executionSummary;
+		        try (MavenOutput mavenOutput = new MavenOutput(listener.getLogger(),
+		        		new File(artifactsDir, MAVEN_OUTPUT_ARTIFACT), MAVEN_OUTPUT_TAIL_LINES)) {
+			        // An empty -Dtest would run every test
+			        if (selectedTestsMapper.isEmpty()) {
+			        	mavenOutput.note("No tests selected, Maven was not run");
+			        	executionSummary = "Maven was not run";
+			        } else if (shards > 1 && selectedTestsMapper.size() > 1) {
+			        	List<TestShards.Shard> plan = TestShards.plan(selectedTests, selector, history.size() > 0, shards);
+			        	executionSummary = runShards(engine, plan, build.getWorkspace(), mavenOutput);
+			        } else {
+				        String testSelection = getTestSelection(selectedTestsMapper);
+				        System.out.println("Test selection string=[" + testSelection + "]");
+				        String command = "test -DfailIfNoTests=false -Dtest=" + testSelection;
+				        long start = System.nanoTime();
+				        try {
+				        	int exitCode = engine.execute(command, build.getWorkspace(), mavenOutput);
+				        	if (exitCode != 0) {
+				        		mavenOutput.note("Maven exited with code " + exitCode);
+				        	}
+						} catch (IOException e) {
+							mavenOutput.note("Could not run Maven: " + e.getMessage());
+						}
+				        executionSummary = "1 invocation, took " + formatSeconds(System.nanoTime() - start) + " s";
+			        }
+			        if (!selectedTestsMapper.isEmpty()) {
+			        	// Startup cost of the invocation, before any test runs
+			        	long firstTestNanos = mavenOutput.getFirstTestNanos();
+			        	String latency = "Ran with " + engine + ", first test started "
+			        			+ (firstTestNanos < 0 ? "never" : formatSeconds(firstTestNanos) + " s after Maven was launched");
+			        	System.out.println(latency);
+			        	executionSummary += "<br/>" + latency;
+			        }
+			        mavenOutputTail = mavenOutput.getTailHtml();
+		        }
+		        
+		        // Generate a report and analyze the maven surefire reports, recording how long each test took
+		        // and which failed
+		        Map<String, Double> durations = new HashMap<String, Double>();
+		        Set<String> failed = new HashSet<String>();
+				String report = generateReport(build.getProject().getDisplayName(), 
+						selectedTests, 
+						selector,
+						selectionSummary,
+						executionSummary,
+						mavenOutputTail,
+						build.getWorkspace(),
+						durations,
+						failed);
+				TestHistory.record(projectName, durations, failed, changedFiles);
+			
+				// Old method to generate the report
                 String path = artifactsDir.getCanonicalPath() + REPORT_TEMPLATE_PATH;
                 try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path),
                   StandardCharsets.UTF_8))) {
@@ -168,31 +486,93 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
     }
 
     /**
-     * Returns the selected tests from the InformationRetriever at the given FilePath
+     * Returns the k best tests selected by the InformationRetriever at the given FilePath, with the changed
+     * files they were selected for<br>
+     * Selections are cached by commit range, index generation and settings, so a build of a range that was
+     * already selected over the same index skips the diff, the queries and the searches
      * @param root
      * @param build
-     * @param n
+     * @param k
+     * @param cutoff decides how many hits of each query are kept
+     * @param config
      * @return
      * @throws IOException
      * @throws InterruptedException
-     * @throws ParseException
      */
-    private static Set<String> getSelectedTests(FilePath root, AbstractBuild build, int n) throws IOException, InterruptedException, ParseException {
+    private static SelectionCache.Entry getSelectedTests(FilePath root, AbstractBuild build, int k, ScoreCutoff cutoff,
+    		IndexConfig config) throws IOException, InterruptedException {
     	FilePath workspaceDir = root;
-    	TestSelection testSelector = new TestSelection(workspaceDir, build);
-    	
-    	// Get the list of diffs
-    	DiffParser parser = new UnifiedDiffParser();
-        InputStream in = new ByteArrayInputStream(testSelector.getDifferences().getBytes());
-        List<Diff> diffs = parser.parse(in);
-        System.out.println("We parsed out " + Integer.toString(diffs.size()) + " diffs!");
+    	String projectName = build.getWorkspace().getName();
+    	// Only what changes the selection, so agents and tuning changes share the cached selections
+    	String settings = "k=" + k + " " + cutoff.getSettings() + " " + config.getSelectionSettings();
+    	String previousRevision;
+    	String currentRevision;
+    	List<ChangedFile> changes;
+    	try (TestSelection testSelector = new TestSelection(workspaceDir, build)) {
+    		previousRevision = testSelector.getPreviousRevision() != null ? testSelector.getPreviousRevision().name() : null;
+    		currentRevision = testSelector.getCurrentRevision().name();
+
+    		String key = SelectionCache.key(previousRevision, currentRevision,
+    				IndexManager.getIndexGeneration(projectName, config), settings);
+    		SelectionCache.Entry cached = SelectionCache.get(projectName, key);
+    		if (cached != null) {
+    			System.out.println("Selection cache hit for " + key);
+    			return cached;
+    		}
+    		System.out.println("Selection cache miss for " + key);
+
+    		// Get the changed Java files
+    		changes = testSelector.getChangedFiles();
+    	}
         
         // Create the information retriever
-    	InformationRetriever ir = new InformationRetriever(root, diffs, build.getWorkspace().getName());
+    	InformationRetriever ir = new InformationRetriever(root, changes, projectName, config);
     	
-        Set<String> selectedTests = ir.getTestDocuments(n);
-        ir.close();
-        return selectedTests;
+    	SelectionCache.Entry selection;
+        try {
+        	List<SelectedTest> tests = ir.selectTests(cutoff, k);
+        	selection = new SelectionCache.Entry(tests, new ArrayList<String>(ir.getChangedFiles()), cutoff.toString());
+        } finally {
+        	// Hands the index back to the registry, which keeps it open for the next build
+        	ir.close();
+        }
+        // Keyed by the generation the tests were selected over, which the next build of the range will find
+        SelectionCache.put(projectName, SelectionCache.key(previousRevision, currentRevision,
+        		IndexManager.getIndexGeneration(projectName, config), settings), selection);
+        return selection;
+    }
+
+    /**
+     * Returns the method of a surefire test case, without the index of a parameterized run (method[1])
+     * @param testCaseMethod
+     * @return
+     */
+    private static String getMethodName(String testCaseMethod) {
+    	int bracket = testCaseMethod.indexOf('[');
+    	return bracket < 0 ? testCaseMethod : testCaseMethod.substring(0, bracket);
+    }
+
+    /**
+     * Adds the time of a surefire test case to the duration of its test<br>
+     * Parameterized runs (method[1], method[2], ...) add up to the duration of their method
+     * @param durations
+     * @param className simple class name
+     * @param testCaseMethod
+     * @param testCaseTime seconds, as reported by surefire
+     */
+    private static void recordDuration(Map<String, Double> durations, String className, String testCaseMethod,
+    		String testCaseTime) {
+    	double seconds;
+    	try {
+    		// Surefire may format large times with grouping commas
+    		seconds = Double.parseDouble(testCaseTime.replace(",", ""));
+    	} catch (NumberFormatException e) {
+    		System.out.println("Ignoring test case time: [" + testCaseTime + "]");
+    		return;
+    	}
+    	String name = className + "." + getMethodName(testCaseMethod);
+    	Double previous = durations.get(name);
+    	durations.put(name, previous == null ? seconds : previous + seconds);
     }
 
     /**
@@ -200,14 +580,21 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
      * 
      * @param projectName
      * @param selectedTests
+     * @param selector estimates the duration of each selected test
+     * @param selectionSummary
+     * @param executionSummary how the tests were run, and how long it took
+     * @param mavenOutput the last lines of the Maven output, as HTML
+     * @param workspace where the surefire reports are read from, on the node of the build
+     * @param durations filled with the seconds taken by each test that ran, keyed by Class.method
+     * @param failed filled with the tests that failed or errored, as Class.method
      * @return
      * @throws IOException
-     * @throws ParserConfigurationException 
-     * @throws SAXException 
+     * @throws InterruptedException
      */
     private static String generateReport(
-    		String projectName, Map<String, List<String>> selectedTests, String mavenOutput, String workspaceDir)
-    		throws IOException {
+    		String projectName, List<SelectedTest> selectedTests, TimeBudgetSelector selector, String selectionSummary,
+    		String executionSummary, String mavenOutput, FilePath workspace, Map<String, Double> durations, Set<String> failed)
+    		throws IOException, InterruptedException {
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
         try (InputStream in = TestSelectionBuildWrapper.class.getResourceAsStream(REPORT_TEMPLATE_PATH)) {
             byte[] buffer = new byte[1024];
@@ -219,32 +606,33 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
         String content = new String(bOut.toByteArray(), StandardCharsets.UTF_8);
         content = content.replace(PROJECT_NAME_VAR, projectName);
         StringBuilder selectedTestsContent = new StringBuilder();
-        for (String className : selectedTests.keySet()) {
+        for (SelectedTest selectedTest : selectedTests) {
         	selectedTestsContent.append("<tr><td>");
-        	selectedTestsContent.append(className);
+        	selectedTestsContent.append(selectedTest.getClassName());
+        	selectedTestsContent.append("</td><td>");
+        	selectedTestsContent.append(selectedTest.getMethodName());
+        	selectedTestsContent.append("</td><td>");
+        	selectedTestsContent.append(String.format("%.4f", selectedTest.getScore()));
         	selectedTestsContent.append("</td><td>");
-        	int i = 0;
-        	for (String methodName : selectedTests.get(className)) {
-        		selectedTestsContent.append(methodName);
-        		if (i+1 < selectedTests.get(className).size()) {
-        			selectedTestsContent.append("<br/>");
-        		}
-        		i++;
-        	}
+        	selectedTestsContent.append(String.format("%.2f", selector.estimate(selectedTest)));
+        	selectedTestsContent.append("</td><td>");
+        	// The changes whose queries ranked this test
+        	selectedTestsContent.append(String.join("<br/>", selectedTest.getSources()));
         	selectedTestsContent.append("</td></tr>\n");
         }
         content = content.replace(SELECTED_TESTS_VAR, selectedTestsContent);
+        content = content.replace(SELECTION_SUMMARY_VAR, selectionSummary);
+        content = content.replace(EXECUTION_SUMMARY_VAR, executionSummary);
 
-        // Parse the surefire-reports XML files
-    	File surefireDir = new File(workspaceDir, SUREFIRE_DIRECTORY);
+        // Parse the surefire-reports XML files, listed and read through the channel of the workspace
+    	FilePath surefireDir = workspace.child(SUREFIRE_DIRECTORY);
     	StringBuilder surefireContent = new StringBuilder();
     	try {
 	        if (surefireDir.isDirectory()) {
 	        	DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
 	        	DocumentBuilder dbBuilder;
 				dbBuilder = dbFactory.newDocumentBuilder();
-	        	File[] surefireReports = surefireDir.listFiles();
-	        	for (File surefireReport : surefireReports) {
+	        	for (FilePath surefireReport : surefireDir.list()) {
 	        		// Check if this is a TEST xml report file
 	        		String surefireReportFilename = surefireReport.getName();
 	        		// Build the report for each test suite
@@ -252,7 +640,10 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
 	        		// https://maven.apache.org/surefire/maven-surefire-plugin/xsd/surefire-test-report-3.0.xsd
 	        		if (surefireReportFilename.contains("TEST") && surefireReportFilename.endsWith(".xml")) {
 	        			//org.w3c.dom.Document
-	        			Document doc = dbBuilder.parse(surefireReport);
+	        			Document doc;
+	        			try (InputStream in = surefireReport.read()) {
+	        				doc = dbBuilder.parse(in);
+	        			}
 	        			doc.getDocumentElement().normalize();
 	        			NodeList testSuites = doc.getElementsByTagName("testsuite");
 	        			// Iterate over all test suites, should just be 1
@@ -262,6 +653,8 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
 	        					Element testSuiteElement = (Element)testSuite;
 	        					// Get test suite attributes
 	        					String className = testSuiteElement.getAttribute("name");
+	        					// Selected tests are named after the simple class name
+	        					String simpleClassName = className.substring(className.lastIndexOf('.') + 1);
 	        					String totalTime = testSuiteElement.getAttribute("time");
 	        					int tests = Integer.parseInt(testSuiteElement.getAttribute("tests"));
 	        					int errors = Integer.parseInt(testSuiteElement.getAttribute("errors"));
@@ -295,7 +688,11 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
 	        							NodeList failureNode = testCaseElement.getElementsByTagName("failure");
 	        							surefireContent.append("<tr><td>").append(testCaseMethod).append("</td><td>")
 	        								.append(testCaseTime).append("</td><td><font color=\"");
+	        							if (skippedNode.getLength() == 0) {
+	        								recordDuration(durations, simpleClassName, testCaseMethod, testCaseTime);
+	        							}
 	        							if (errorNode.getLength() > 0 || failureNode.getLength() > 0) {
+	        								failed.add(simpleClassName + "." + getMethodName(testCaseMethod));
 	        								surefireContent.append("red\">").append("FAILED");
 	        							}
 	        							else if (skippedNode.getLength() > 0) {
@@ -316,7 +713,7 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
 	        		}
 	        	}
 	        } else {
-	        	System.out.println("Could not find directory for surefire reports, expected: " + surefireDir.getAbsolutePath());
+	        	System.out.println("Could not find directory for surefire reports, expected: " + surefireDir.getRemote());
 	        	surefireContent.append("<font color=\"red\">ERROR</font>: Could not find surefire reports directory");
 	        }
     	} catch (SAXException e) {
@@ -338,45 +735,182 @@ public class TestSelectionBuildWrapper extends BuildWrapper {
     }
 
     /**
-     * Invokes the given Maven command from a pom.xml file within the working directory
-     * @param mavenCommand
-     * @param workingDirectory
+     * Returns the surefire (2.19+) -Dtest value selecting the given methods of each class: Class#m1+m2,Class2#m3
+     * @param classes
      * @return
-     * @throws MavenInvocationException
      */
-	public String runCommand(String mavenCommand, File workingDirectory) throws MavenInvocationException {	
-		InvocationRequest request = new DefaultInvocationRequest();
-		request.setPomFile(new File(workingDirectory, "pom.xml"));
-
-		List<String> goals= new ArrayList<String>(); goals.add(mavenCommand);
-		
-		request.setGoals(Collections.singletonList(mavenCommand));
-	 	Invoker invoker = new DefaultInvoker();			
-		final StringBuilder mavenOutput = new StringBuilder();
-		invoker.setOutputHandler(new InvocationOutputHandler() {
-		    public void consumeLine(String line) {
-		        mavenOutput.append(line).append("<br/>");
-		    }
-		});
-		// You can find the Maven home by calling "mvn --version"
-		invoker.setMavenHome(new File("/usr/share/maven"));
-		try {
-		    InvocationResult invocationResult = invoker.execute(request);
-
-		    // Process maven output
-		    System.out.println(mavenOutput);
-		    if (invocationResult.getExitCode() != 0) {
-		        System.out.println("Maven invocation error on command [" + mavenCommand + "] in directory: " + workingDirectory.getAbsolutePath());
-		        return null;
-		    }
-		} catch (MavenInvocationException e) {
-		    e.printStackTrace();
-		}
-		return mavenOutput.toString();	
-	    }
+    private static String getTestSelection(Map<String, List<String>> classes) {
+    	List<String> selection = new ArrayList<String>();
+    	for (Map.Entry<String, List<String>> e : classes.entrySet()) {
+    		selection.add(e.getKey() + "#" + String.join("+", e.getValue()));
+    	}
+    	return String.join(",", selection);
+    }
+
+    private static String formatSeconds(long nanos) {
+    	return String.format("%.2f", nanos / 1e9);
+    }
+
+    /**
+     * Compiles the tests once, then runs every shard at the same time with surefire:test<br>
+     * Each shard holds whole classes, so the shards write distinct reports into the same surefire directory,
+     * which the report then reads as if one invocation ran them all. The shards share the target directory
+     * of the workspace, so only single-module projects whose test runs write nothing else there under a
+     * fixed name (such as a coverage agent's data file) can be sharded
+     * @param engine
+     * @param plan
+     * @param workingDirectory
+     * @param mavenOutput receives the output of every invocation, prefixed by its shard
+     * @return how long each shard took, and how unbalanced they were
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private String runShards(final MavenEngine engine, List<TestShards.Shard> plan, final FilePath workingDirectory, final MavenOutput mavenOutput)
+    		throws IOException, InterruptedException {
+    	long compileStart = System.nanoTime();
+    	try {
+    		int exitCode = engine.execute("test-compile", workingDirectory, mavenOutput);
+    		if (exitCode != 0) {
+    			mavenOutput.note("Maven exited with code " + exitCode + " while compiling the tests, shards were not run");
+    			return "Test compilation failed, shards were not run";
+    		}
+    	} catch (IOException e) {
+    		mavenOutput.note("Could not run Maven: " + e.getMessage());
+    		return "Test compilation failed, shards were not run";
+    	}
+    	long compileNanos = System.nanoTime() - compileStart;
+    	// The compilation is timed on its own, the first test latency is that of the shards
+    	mavenOutput.restartClock();
+
+    	final long[] shardNanos = new long[plan.size()];
+    	long start = System.nanoTime();
+    	ExecutorService executor = Executors.newFixedThreadPool(plan.size());
+    	try {
+    		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    		for (int i = 0; i < plan.size(); i++) {
+    			final int index = i;
+    			final String testSelection = getTestSelection(plan.get(i).getClasses());
+    			System.out.println("Shard " + (index + 1) + " test selection string=[" + testSelection + "]");
+    			futures.add(executor.submit(new Callable<Void>() {
+    				@Override
+    				public Void call() throws InterruptedException {
+    					final String prefix = "[shard " + (index + 1) + "] ";
+    					long shardStart = System.nanoTime();
+    					try {
+    						int exitCode = engine.execute("surefire:test -DfailIfNoTests=false -Dtest=" + testSelection,
+    								workingDirectory, new InvocationOutputHandler() {
+    									@Override
+    									public void consumeLine(String line) {
+    										mavenOutput.consumeLine(prefix + line);
+    									}
+    								});
+    						if (exitCode != 0) {
+    							mavenOutput.note(prefix + "Maven exited with code " + exitCode);
+    						}
+    					} catch (IOException e) {
+    						mavenOutput.note(prefix + "Could not run Maven: " + e.getMessage());
+    					} finally {
+    						shardNanos[index] = System.nanoTime() - shardStart;
+    					}
+    					return null;
+    				}
+    			}));
+    		}
+    		for (Future<Void> future : futures) {
+    			try {
+    				future.get();
+    			} catch (ExecutionException e) {
+    				throw new IOException(e.getCause());
+    			}
+    		}
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    	long totalNanos = System.nanoTime() - start;
+
+    	// Imbalance: how much longer the slowest shard took than the mean, 1 when perfectly balanced
+    	long slowest = 0;
+    	long sum = 0;
+    	StringBuilder summary = new StringBuilder();
+    	summary.append(plan.size()).append(" shards after compiling the tests in ").append(formatSeconds(compileNanos))
+    			.append(" s, took ").append(formatSeconds(totalNanos)).append(" s:");
+    	for (int i = 0; i < plan.size(); i++) {
+    		slowest = Math.max(slowest, shardNanos[i]);
+    		sum += shardNanos[i];
+    		summary.append("<br/>Shard ").append(i + 1).append(": ").append(plan.get(i).getClasses().size())
+    				.append(" classes, estimated ").append(String.format("%.2f", plan.get(i).getEstimatedSeconds()))
+    				.append(" s, took ").append(formatSeconds(shardNanos[i])).append(" s");
+    	}
+    	double imbalance = sum > 0 ? slowest / ((double) sum / plan.size()) : 1;
+    	summary.append("<br/>Imbalance (slowest over mean): ").append(String.format("%.2f", imbalance));
+    	System.out.println(summary.toString().replace("<br/>", "\n"));
+    	return summary.toString();
+    }
 
     @Extension
     public static final class DescriptorImpl extends BuildWrapperDescriptor {
+    	
+    	private String defaultIndexDirectoryType;
+    	
+    	public DescriptorImpl() {
+    		load();
+    	}
+    	
+    	public String getDefaultIndexDirectoryType() {
+    		return defaultIndexDirectoryType;
+    	}
+    	
+    	/**
+    	 * Name of the IndexDirectoryType used by jobs that do not choose one
+    	 * @param defaultIndexDirectoryType
+    	 */
+    	public void setDefaultIndexDirectoryType(String defaultIndexDirectoryType) {
+    		this.defaultIndexDirectoryType = defaultIndexDirectoryType;
+    	}
+    	
+    	@Override
+    	public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+    		req.bindJSON(this, json);
+    		save();
+    		return true;
+    	}
+    	
+    	public ListBoxModel doFillDefaultIndexDirectoryTypeItems() {
+    		ListBoxModel items = new ListBoxModel();
+    		for (IndexDirectoryType type : IndexDirectoryType.values()) {
+    			items.add(type.getDisplayName(), type.name());
+    		}
+    		return items;
+    	}
+    	
+    	public ListBoxModel doFillMavenNameItems() {
+    		ListBoxModel items = new ListBoxModel();
+    		items.add("First configured", "");
+    		Maven.DescriptorImpl maven = Jenkins.getInstance().getDescriptorByType(Maven.DescriptorImpl.class);
+    		if (maven != null) {
+    			for (Maven.MavenInstallation installation : maven.getInstallations()) {
+    				items.add(installation.getName(), installation.getName());
+    			}
+    		}
+    		return items;
+    	}
+    	
+    	public ListBoxModel doFillCutoffModeItems() {
+    		ListBoxModel items = new ListBoxModel();
+    		for (CutoffMode mode : CutoffMode.values()) {
+    			items.add(mode.getDisplayName(), mode.name());
+    		}
+    		return items;
+    	}
+    	
+    	public ListBoxModel doFillIndexDirectoryTypeItems() {
+    		ListBoxModel items = new ListBoxModel();
+    		items.add("Global default", "");
+    		for (IndexDirectoryType type : IndexDirectoryType.values()) {
+    			items.add(type.getDisplayName(), type.name());
+    		}
+    		return items;
+    	}
 
         @Override
         public boolean isApplicable(AbstractProject<?, ?> item) {
@@ -0,0 +1,110 @@
+package cs685.test.selection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs685.test.selection.ir.SelectedTest;
+
+/**
+ * Splits the selected tests into shards that can run concurrently<br>
+ * Tests of a class stay in the same shard, so each shard writes its own surefire reports. Classes are
+ * assigned longest first to the least loaded shard (the LPT rule), weighted by the recorded duration of
+ * their tests, or by one per class when the project has no history
+ *
+ */
+public class TestShards {
+	private TestShards() {
+	}
+
+	/**
+	 * Plans at most n shards, fewer if there are not enough classes
+	 * @param tests
+	 * @param selector estimates the duration of each test
+	 * @param byDuration false to give every class the same weight
+	 * @param n
+	 * @return the shards, none empty
+	 */
+	public static List<Shard> plan(List<SelectedTest> tests, TimeBudgetSelector selector, boolean byDuration, int n) {
+		// Weight of each class, in the order of the selection
+		final Map<String, Shard> classes = new LinkedHashMap<String, Shard>();
+		for (SelectedTest test : tests) {
+			Shard testClass = classes.get(test.getClassName());
+			if (testClass == null) {
+				testClass = new Shard();
+				classes.put(test.getClassName(), testClass);
+			}
+			// Estimated either way, so shards balanced by class count still report their expected time
+			testClass.add(test.getClassName(), test.getMethodName(), selector.estimate(test));
+		}
+		List<String> classNames = new ArrayList<String>(classes.keySet());
+		if (byDuration) {
+			// Stable, so classes as long keep their rank
+			Collections.sort(classNames, new Comparator<String>() {
+				@Override
+				public int compare(String a, String b) {
+					return Double.compare(classes.get(b).getEstimatedSeconds(), classes.get(a).getEstimatedSeconds());
+				}
+			});
+		}
+		List<Shard> shards = new ArrayList<Shard>();
+		for (int i = 0; i < Math.min(n, classNames.size()); i++) {
+			shards.add(new Shard());
+		}
+		for (String className : classNames) {
+			Shard lightest = shards.get(0);
+			for (Shard shard : shards) {
+				if (shard.getLoad(byDuration) < lightest.getLoad(byDuration)) {
+					lightest = shard;
+				}
+			}
+			Shard testClass = classes.get(className);
+			for (String methodName : testClass.getClasses().get(className)) {
+				lightest.add(className, methodName, 0);
+			}
+			lightest.estimatedSeconds += testClass.getEstimatedSeconds();
+		}
+		return shards;
+	}
+
+	/**
+	 * The test classes, and their methods, run by one invocation
+	 */
+	public static class Shard {
+		private final Map<String, List<String>> classes = new LinkedHashMap<String, List<String>>();
+		private double estimatedSeconds;
+
+		private void add(String className, String methodName, double seconds) {
+			List<String> methods = this.classes.get(className);
+			if (methods == null) {
+				methods = new ArrayList<String>();
+				this.classes.put(className, methods);
+			}
+			methods.add(methodName);
+			this.estimatedSeconds += seconds;
+		}
+
+		private double getLoad(boolean byDuration) {
+			return byDuration ? this.estimatedSeconds : this.classes.size();
+		}
+
+		/**
+		 * Test methods of each class, in the order of the selection
+		 * @return
+		 */
+		public Map<String, List<String>> getClasses() {
+			return this.classes;
+		}
+
+		/**
+		 * Sum of the estimated durations of the tests, also when shards were balanced by class count
+		 * @return
+		 */
+		public double getEstimatedSeconds() {
+			return this.estimatedSeconds;
+		}
+	}
+}
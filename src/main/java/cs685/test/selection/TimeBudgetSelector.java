@@ -0,0 +1,95 @@
+package cs685.test.selection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cs685.test.selection.ir.SelectedTest;
+
+/**
+ * Chooses the tests to run within a wall-clock budget<br>
+ * Candidates are taken greedily by score per second of their recorded duration, skipping those that no
+ * longer fit, so many quick relevant tests are preferred over a single slow one. Tests without history
+ * are assumed to take the mean duration of the project's tests
+ *
+ */
+public class TimeBudgetSelector {
+	// Assumed duration of every test while a project has no history
+	private static final double DEFAULT_DURATION = 1.0;
+	// Surefire reports very fast tests as taking 0 s
+	private static final double MIN_DURATION = 0.01;
+
+	private final TestHistory history;
+	private final double budgetSeconds;
+	private final double unknownDuration;
+
+	/**
+	 * @param history
+	 * @param budgetSeconds 0 for no budget
+	 */
+	public TimeBudgetSelector(TestHistory history, double budgetSeconds) {
+		this.history = history;
+		this.budgetSeconds = budgetSeconds;
+		this.unknownDuration = history.getMeanDuration(DEFAULT_DURATION);
+	}
+
+	/**
+	 * Estimated duration of a test in seconds
+	 * @param test
+	 * @return
+	 */
+	public double estimate(SelectedTest test) {
+		TestHistory.Entry entry = this.history.get(test.getName());
+		boolean known = entry != null && entry.getRuns() > 0;
+		return Math.max(MIN_DURATION, known ? entry.getDuration() : this.unknownDuration);
+	}
+
+	/**
+	 * Selects at most maxTests of the candidates whose estimated durations fit in the budget<br>
+	 * Without a budget, the maxTests best ranked candidates are selected
+	 * @param candidates ranked by score
+	 * @param maxTests
+	 * @return the selected tests, in rank order
+	 */
+	public List<SelectedTest> select(List<SelectedTest> candidates, int maxTests) {
+		if (this.budgetSeconds <= 0) {
+			return new ArrayList<SelectedTest>(candidates.subList(0, Math.min(maxTests, candidates.size())));
+		}
+		final List<SelectedTest> ranked = new ArrayList<SelectedTest>(candidates);
+		final double[] durations = new double[ranked.size()];
+		Integer[] order = new Integer[ranked.size()];
+		for (int i = 0; i < ranked.size(); i++) {
+			durations[i] = estimate(ranked.get(i));
+			order[i] = i;
+		}
+		// Stable, so tests of equal value keep their rank
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(ranked.get(b).getScore() / durations[b], ranked.get(a).getScore() / durations[a]);
+			}
+		});
+		List<Integer> chosen = new ArrayList<Integer>();
+		double total = 0;
+		for (int i : order) {
+			if (chosen.size() >= maxTests) {
+				break;
+			}
+			if (total + durations[i] <= this.budgetSeconds) {
+				chosen.add(i);
+				total += durations[i];
+			}
+		}
+		Collections.sort(chosen);
+		List<SelectedTest> selected = new ArrayList<SelectedTest>();
+		for (int i : chosen) {
+			selected.add(ranked.get(i));
+		}
+		System.out.println("Selected " + Integer.toString(selected.size()) + " of " + Integer.toString(ranked.size())
+				+ " candidates, estimated " + String.format("%.2f", total) + " s of a "
+				+ String.format("%.2f", this.budgetSeconds) + " s budget");
+		return selected;
+	}
+}
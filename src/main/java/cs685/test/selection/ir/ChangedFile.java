@@ -0,0 +1,81 @@
+package cs685.test.selection.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes to a single file between two revisions: the line ranges of the new version that were
+ * changed, and the text added in each<br>
+ * Removed lines and context are not kept, so the model stays a fraction of the size of the unified diff
+ *
+ */
+public class ChangedFile {
+	private final String path;
+	private final List<ChangedRange> ranges = new ArrayList<ChangedRange>();
+
+	/**
+	 * @param path of the new version, relative to the repository
+	 */
+	public ChangedFile(String path) {
+		this.path = path;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	public void addRange(ChangedRange range) {
+		this.ranges.add(range);
+	}
+
+	/**
+	 * The changed ranges, in the order of the file
+	 * @return
+	 */
+	public List<ChangedRange> getRanges() {
+		return Collections.unmodifiableList(this.ranges);
+	}
+
+	@Override
+	public String toString() {
+		return this.path + " " + this.ranges;
+	}
+
+	/**
+	 * Lines of the new version of a file that were changed (inclusive)<br>
+	 * A change that only removes lines spans the lines around the removal
+	 */
+	public static class ChangedRange {
+		private final int startLine;
+		private final int endLine;
+		private final String addedText;
+
+		public ChangedRange(int startLine, int endLine, String addedText) {
+			this.startLine = startLine;
+			this.endLine = endLine;
+			this.addedText = addedText;
+		}
+
+		public int getStartLine() {
+			return this.startLine;
+		}
+
+		public int getEndLine() {
+			return this.endLine;
+		}
+
+		/**
+		 * The lines added or replacing others, empty if lines were only removed
+		 * @return
+		 */
+		public String getAddedText() {
+			return this.addedText;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + this.startLine + ", " + this.endLine + ")";
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package cs685.test.selection.ir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.StopFilter;
+import org.apache.lucene.analysis.miscellaneous.LengthFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+
+/**
+ * Normalizes source code and natural language into search terms, the same way for indexing and querying<br>
+ * Punctuation is stripped and camel case split by a CodeTokenizer, then terms are lower cased and single
+ * letters, stopwords and Java keywords are removed
+ *
+ */
+public final class CodeAnalyzer extends Analyzer {
+	/**
+	 * Identifies how terms are produced, to be changed with the tokenization, filters or word lists:
+	 * selections cached with another version are not reused
+	 */
+	public static final int VERSION = 1;
+
+	private static final String STOPWORDS_FILENAME = "/stopwords.txt";
+	private static final String KEYWORDS_FILENAME = "/keywords.txt";
+
+	// Loaded once per JVM, so they are also available where the workspace is scanned
+	private static final CharArraySet STOPWORDS = loadWords(STOPWORDS_FILENAME);
+	private static final CharArraySet KEYWORDS = loadWords(KEYWORDS_FILENAME);
+
+	private static final CodeAnalyzer SHARED = new CodeAnalyzer();
+	private static final LongAdder TOKENS = new LongAdder();
+
+	/**
+	 * Loads a resource file of words, one per line, removing single quotes
+	 * @param filename
+	 * @return
+	 */
+	private static CharArraySet loadWords(String filename) {
+		List<String> words = new ArrayList<String>();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(
+				CodeAnalyzer.class.getResourceAsStream(filename), StandardCharsets.UTF_8))) {
+			for (String line; (line = br.readLine()) != null;) {
+				words.add(line.replace("'", "")); // remove single quotes
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not load " + filename, e);
+		}
+		return CharArraySet.unmodifiableSet(new CharArraySet(words, false));
+	}
+
+	public static CharArraySet getStopwords() {
+		return STOPWORDS;
+	}
+
+	public static CharArraySet getKeywords() {
+		return KEYWORDS;
+	}
+
+	@Override
+	protected TokenStreamComponents createComponents(String fieldName) {
+		Tokenizer tokenizer = new CodeTokenizer();
+		TokenStream stream = new LowerCaseFilter(tokenizer);
+		// Avoid variables named "i", etc.
+		stream = new LengthFilter(stream, 2, Integer.MAX_VALUE);
+		stream = new StopFilter(stream, STOPWORDS);
+		stream = new StopFilter(stream, KEYWORDS);
+		return new TokenStreamComponents(tokenizer, stream);
+	}
+
+	/**
+	 * Returns the terms of the text, separated by spaces
+	 * @param text
+	 * @return
+	 */
+	public static String normalize(String text) {
+		StringBuilder terms = new StringBuilder();
+		try (TokenStream stream = SHARED.tokenStream(null, text)) {
+			CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				if (terms.length() > 0) {
+					terms.append(' ');
+				}
+				terms.append(termAtt.buffer(), 0, termAtt.length());
+			}
+			stream.end();
+		} catch (IOException e) {
+			// Reading from a String does not fail
+			throw new IllegalStateException(e);
+		}
+		return terms.toString();
+	}
+
+	static void countTokens(long tokens) {
+		TOKENS.add(tokens);
+	}
+
+	/**
+	 * Number of tokens produced by every CodeTokenizer of this JVM, before filtering
+	 * @return
+	 */
+	public static long getTokenCount() {
+		return TOKENS.sum();
+	}
+}
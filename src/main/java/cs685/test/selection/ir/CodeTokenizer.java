@@ -0,0 +1,98 @@
+package cs685.test.selection.ir;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+
+/**
+ * Splits source code and natural language into words: runs of ASCII letters, further split on camel case<br>
+ * Everything that is not a letter separates words and is dropped. Camel case is split before an upper case
+ * letter that follows a lower case one (fooBar), and before the last upper case letter of an acronym that
+ * is followed by lower case (HTMLParser into HTML and Parser). Terms are copied straight from a reused
+ * buffer, so no intermediate Strings are created
+ *
+ */
+public final class CodeTokenizer extends Tokenizer {
+	private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+	private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+	private char[] chars = new char[1024];
+	private int length;
+	private int pos;
+	private long tokens;
+
+	@Override
+	public boolean incrementToken() throws IOException {
+		clearAttributes();
+		// Skip to the next letter
+		while (this.pos < this.length && !isLetter(this.chars[this.pos])) {
+			this.pos++;
+		}
+		if (this.pos == this.length) {
+			return false;
+		}
+		int start = this.pos++;
+		while (this.pos < this.length && isLetter(this.chars[this.pos]) && !isCamelCaseBoundary(this.pos)) {
+			this.pos++;
+		}
+		this.termAtt.copyBuffer(this.chars, start, this.pos - start);
+		this.offsetAtt.setOffset(correctOffset(start), correctOffset(this.pos));
+		this.tokens++;
+		return true;
+	}
+
+	/**
+	 * True if a new word starts at the given letter, which follows another letter
+	 * @param i
+	 * @return
+	 */
+	private boolean isCamelCaseBoundary(int i) {
+		if (!isUpperCase(this.chars[i])) {
+			return false;
+		}
+		if (!isUpperCase(this.chars[i - 1])) {
+			return true;
+		}
+		return i + 1 < this.length && isLowerCase(this.chars[i + 1]);
+	}
+
+	private static boolean isLetter(char c) {
+		return isUpperCase(c) || isLowerCase(c);
+	}
+
+	private static boolean isUpperCase(char c) {
+		return c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isLowerCase(char c) {
+		return c >= 'a' && c <= 'z';
+	}
+
+	/**
+	 * Reads the whole input into the buffer, which only grows, since camel case needs to look ahead
+	 */
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		this.length = 0;
+		this.pos = 0;
+		for (int read; (read = this.input.read(this.chars, this.length, this.chars.length - this.length)) != -1;) {
+			this.length += read;
+			if (this.length == this.chars.length) {
+				this.chars = Arrays.copyOf(this.chars, this.length * 2);
+			}
+		}
+	}
+
+	@Override
+	public void end() throws IOException {
+		super.end();
+		int finalOffset = correctOffset(this.length);
+		this.offsetAtt.setOffset(finalOffset, finalOffset);
+		CodeAnalyzer.countTokens(this.tokens);
+		this.tokens = 0;
+	}
+}
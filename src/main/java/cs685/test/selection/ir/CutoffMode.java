@@ -0,0 +1,126 @@
+package cs685.test.selection.ir;
+
+/**
+ * How many of the hits of a query are kept, from the distribution of their scores<br>
+ * Scores are in decreasing order, and the number returned is then bounded by the floor and ceiling of the
+ * ScoreCutoff, so every mode only decides within that range
+ *
+ */
+public enum CutoffMode {
+	/**
+	 * Keeps every hit collected, up to the ceiling
+	 */
+	FIXED("Fixed (always the ceiling)") {
+		@Override
+		public int cut(float[] scores, float threshold) {
+			return scores.length;
+		}
+	},
+	/**
+	 * Keeps the hits scoring at least threshold times the top score
+	 */
+	RELATIVE("Relative to the top score") {
+		@Override
+		public int cut(float[] scores, float threshold) {
+			int kept = 0;
+			while (kept < scores.length && scores[kept] >= threshold * scores[0]) {
+				kept++;
+			}
+			return kept;
+		}
+
+		@Override
+		public float getDefaultThreshold() {
+			return 0.5f;
+		}
+	},
+	/**
+	 * Keeps the hits before the knee of the score curve: with ranks and scores scaled to [0, 1], the
+	 * point furthest below the straight line from the top hit to the last one. Keeps every hit if the
+	 * scores do not bend down that way
+	 */
+	KNEE("Knee of the score curve") {
+		@Override
+		public int cut(float[] scores, float threshold) {
+			int last = scores.length - 1;
+			float range = scores[0] - scores[last];
+			if (last < 2 || range <= 0) {
+				return scores.length;
+			}
+			int knee = scores.length;
+			double maxDistance = 0;
+			for (int i = 1; i < last; i++) {
+				double x = (double) i / last;
+				double y = (scores[i] - scores[last]) / range;
+				// Distance below the line y = 1 - x, up to a constant factor
+				double distance = 1 - x - y;
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					knee = i;
+				}
+			}
+			return knee;
+		}
+	},
+	/**
+	 * Stops at the first drop between consecutive hits of at least threshold times the top score
+	 */
+	GAP("First large score gap") {
+		@Override
+		public int cut(float[] scores, float threshold) {
+			for (int i = 0; i + 1 < scores.length; i++) {
+				if (scores[i] - scores[i + 1] >= threshold * scores[0]) {
+					return i + 1;
+				}
+			}
+			return scores.length;
+		}
+
+		@Override
+		public float getDefaultThreshold() {
+			return 0.25f;
+		}
+	};
+
+	private final String displayName;
+
+	private CutoffMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return this.displayName;
+	}
+
+	/**
+	 * Returns how many of the hits to keep
+	 * @param scores scores of the hits, in decreasing order, at least one
+	 * @param threshold fraction of the top score, for the modes that use one
+	 * @return
+	 */
+	public abstract int cut(float[] scores, float threshold);
+
+	/**
+	 * Threshold used when none is configured
+	 * @return
+	 */
+	public float getDefaultThreshold() {
+		return 0;
+	}
+
+	/**
+	 * Returns the mode with the given name, or FIXED if the name is empty or unknown
+	 * @param name
+	 * @return
+	 */
+	public static CutoffMode fromName(String name) {
+		if (name != null) {
+			for (CutoffMode mode : values()) {
+				if (mode.name().equals(name)) {
+					return mode;
+				}
+			}
+		}
+		return FIXED;
+	}
+}
@@ -0,0 +1,87 @@
+package cs685.test.selection.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the declarations of a file that overlap a range of lines<br>
+ * An interval tree laid out over the declarations sorted by their first line: the subtree of the
+ * range [lo, hi) is rooted at its middle element, and each root records the last line of any declaration
+ * below it, so whole subtrees that end before the range are skipped. A lookup takes O(log n + k) for
+ * k overlapping declarations, which keeps files with thousands of methods cheap. Nested declarations
+ * simply overlap each other, so a hunk within an inner class finds both the inner and the outer class
+ *
+ */
+public class DeclarationIndex {
+	private final SourceSummary.Declaration[] declarations;
+	private final int[] maxEnds;
+
+	public DeclarationIndex(List<SourceSummary.Declaration> declarations) {
+		List<SourceSummary.Declaration> sorted = new ArrayList<SourceSummary.Declaration>(declarations);
+		Collections.sort(sorted, new Comparator<SourceSummary.Declaration>() {
+			@Override
+			public int compare(SourceSummary.Declaration a, SourceSummary.Declaration b) {
+				return Integer.compare(a.getBeginLine(), b.getBeginLine());
+			}
+		});
+		this.declarations = sorted.toArray(new SourceSummary.Declaration[sorted.size()]);
+		this.maxEnds = new int[this.declarations.length];
+		buildMaxEnds(0, this.declarations.length);
+	}
+
+	/**
+	 * Records the last line of each subtree at its root, and returns it
+	 * @param lo
+	 * @param hi
+	 * @return
+	 */
+	private int buildMaxEnds(int lo, int hi) {
+		if (lo >= hi) {
+			return Integer.MIN_VALUE;
+		}
+		int mid = (lo + hi) >>> 1;
+		int maxEnd = Math.max(this.declarations[mid].getEndLine(),
+				Math.max(buildMaxEnds(lo, mid), buildMaxEnds(mid + 1, hi)));
+		this.maxEnds[mid] = maxEnd;
+		return maxEnd;
+	}
+
+	/**
+	 * Returns the declarations that share at least one line with the range, including those it contains
+	 * @param startLine first line of the range
+	 * @param endLine last line of the range (inclusive)
+	 * @return
+	 */
+	public List<SourceSummary.Declaration> overlapping(int startLine, int endLine) {
+		List<SourceSummary.Declaration> overlapping = new ArrayList<SourceSummary.Declaration>();
+		collect(0, this.declarations.length, startLine, endLine, overlapping);
+		return overlapping;
+	}
+
+	private void collect(int lo, int hi, int startLine, int endLine, List<SourceSummary.Declaration> overlapping) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		// Nothing in this subtree reaches the range
+		if (this.maxEnds[mid] < startLine) {
+			return;
+		}
+		collect(lo, mid, startLine, endLine, overlapping);
+		SourceSummary.Declaration declaration = this.declarations[mid];
+		// This and every later declaration start after the range
+		if (declaration.getBeginLine() > endLine) {
+			return;
+		}
+		if (declaration.getEndLine() >= startLine) {
+			overlapping.add(declaration);
+		}
+		collect(mid + 1, hi, startLine, endLine, overlapping);
+	}
+
+	public int size() {
+		return this.declarations.length;
+	}
+}
@@ -0,0 +1,60 @@
+package cs685.test.selection.ir;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import hudson.Util;
+
+/**
+ * Size, modification time and content hash of a workspace file, as last seen when indexing
+ *
+ */
+public class FileState implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long lastModified;
+	private final long length;
+	private final String hash;
+
+	public FileState(long lastModified, long length, String hash) {
+		this.lastModified = lastModified;
+		this.length = length;
+		this.hash = hash;
+	}
+
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	public long getLength() {
+		return this.length;
+	}
+
+	public String getHash() {
+		return this.hash;
+	}
+
+	/**
+	 * Returns the MD5 hash of the content as a hex string, the same format as FilePath.digest()
+	 * @param content
+	 * @return
+	 */
+	public static String hashOf(byte[] content) {
+		try {
+			return Util.toHexString(MessageDigest.getInstance("MD5").digest(content));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * True if the file has the same size and modification time as recorded
+	 * @param lastModified
+	 * @param length
+	 * @return
+	 */
+	public boolean hasSameStat(long lastModified, long length) {
+		return this.lastModified == lastModified && this.length == length;
+	}
+}
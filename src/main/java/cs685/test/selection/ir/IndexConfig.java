@@ -0,0 +1,212 @@
+package cs685.test.selection.ir;
+
+import java.io.Serializable;
+
+/**
+ * Tunable settings used when building the index of test documents<br>
+ * Unset (zero or negative) values fall back to their defaults
+ *
+ */
+public class IndexConfig implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_MAX_IN_FLIGHT_FILES = 256;
+	public static final double DEFAULT_RAM_BUFFER_MB = 64.0;
+	public static final int DEFAULT_INDEX_BATCH_SIZE = 500;
+	public static final int DEFAULT_MAX_QUERY_THREADS = 4;
+	public static final int DEFAULT_MAX_QUERY_CLAUSES = 256;
+	public static final float DEFAULT_CLASS_BOOST = 2.0f;
+	public static final float DEFAULT_METHOD_BOOST = 3.0f;
+
+	private int indexThreads;
+	private int maxInFlightFiles;
+	private double ramBufferMB;
+	private int indexBatchSize;
+	private int commitBatchSize;
+	private int queryThreads;
+	private int maxQueryClauses;
+	private float classBoost;
+	private float methodBoost;
+	private boolean storeContent;
+	private IndexDirectoryType directoryType;
+	private SourceFilter sourceFilter;
+
+	/**
+	 * Number of worker threads used to parse Java files
+	 * @return
+	 */
+	public int getIndexThreads() {
+		return indexThreads > 0 ? indexThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	public void setIndexThreads(int indexThreads) {
+		this.indexThreads = indexThreads;
+	}
+
+	/**
+	 * Maximum number of files being hashed while scanning, and of files summarized per batch, at once
+	 * @return
+	 */
+	public int getMaxInFlightFiles() {
+		return maxInFlightFiles > 0 ? maxInFlightFiles : DEFAULT_MAX_IN_FLIGHT_FILES;
+	}
+
+	public void setMaxInFlightFiles(int maxInFlightFiles) {
+		this.maxInFlightFiles = maxInFlightFiles;
+	}
+
+	/**
+	 * Size of the IndexWriter's RAM buffer before it flushes a segment
+	 * @return
+	 */
+	public double getRamBufferMB() {
+		return ramBufferMB > 0 ? ramBufferMB : DEFAULT_RAM_BUFFER_MB;
+	}
+
+	public void setRamBufferMB(double ramBufferMB) {
+		this.ramBufferMB = ramBufferMB;
+	}
+
+	/**
+	 * Number of documents handed to the IndexWriter in a single call
+	 * @return
+	 */
+	public int getIndexBatchSize() {
+		return indexBatchSize > 0 ? indexBatchSize : DEFAULT_INDEX_BATCH_SIZE;
+	}
+
+	public void setIndexBatchSize(int indexBatchSize) {
+		this.indexBatchSize = indexBatchSize;
+	}
+
+	/**
+	 * Number of queued adds and deletes after which the index is committed<br>
+	 * Zero (the default) commits once, after the whole build has been indexed
+	 * @return
+	 */
+	public int getCommitBatchSize() {
+		return Math.max(commitBatchSize, 0);
+	}
+
+	public void setCommitBatchSize(int commitBatchSize) {
+		this.commitBatchSize = commitBatchSize;
+	}
+
+	/**
+	 * Number of threads searching a batch of queries<br>
+	 * Defaults to one per core, but no more than DEFAULT_MAX_QUERY_THREADS
+	 * @return
+	 */
+	public int getQueryThreads() {
+		return queryThreads > 0 ? queryThreads
+				: Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_QUERY_THREADS);
+	}
+
+	public void setQueryThreads(int queryThreads) {
+		this.queryThreads = queryThreads;
+	}
+
+	/**
+	 * Maximum number of term clauses in the query built from a hunk, the least frequent terms are dropped first
+	 * @return
+	 */
+	public int getMaxQueryClauses() {
+		return maxQueryClauses > 0 ? maxQueryClauses : DEFAULT_MAX_QUERY_CLAUSES;
+	}
+
+	public void setMaxQueryClauses(int maxQueryClauses) {
+		this.maxQueryClauses = maxQueryClauses;
+	}
+
+	/**
+	 * Boost of the changed class names matched against the class names of test methods
+	 * @return
+	 */
+	public float getClassBoost() {
+		return classBoost > 0 ? classBoost : DEFAULT_CLASS_BOOST;
+	}
+
+	public void setClassBoost(float classBoost) {
+		this.classBoost = classBoost;
+	}
+
+	/**
+	 * Boost of the changed method names matched against the names of test methods
+	 * @return
+	 */
+	public float getMethodBoost() {
+		return methodBoost > 0 ? methodBoost : DEFAULT_METHOD_BOOST;
+	}
+
+	public void setMethodBoost(float methodBoost) {
+		this.methodBoost = methodBoost;
+	}
+
+	/**
+	 * True if the full content of each test document is stored in the index, instead of only being indexed<br>
+	 * Off by default, which keeps the index compact
+	 * @return
+	 */
+	public boolean isStoreContent() {
+		return storeContent;
+	}
+
+	public void setStoreContent(boolean storeContent) {
+		this.storeContent = storeContent;
+	}
+
+	/**
+	 * Name of the document layout written with these settings<br>
+	 * An index written with a different layout is rebuilt
+	 * @return
+	 */
+	public String getIndexLayout() {
+		return storeContent ? "stored" : "compact";
+	}
+
+	/**
+	 * How the index is stored and read
+	 * @return
+	 */
+	public IndexDirectoryType getDirectoryType() {
+		return directoryType != null ? directoryType : IndexDirectoryType.DEFAULT;
+	}
+
+	public void setDirectoryType(IndexDirectoryType directoryType) {
+		this.directoryType = directoryType;
+	}
+
+	/**
+	 * Which files of the workspace are scanned and indexed
+	 * @return
+	 */
+	public SourceFilter getSourceFilter() {
+		return sourceFilter != null ? sourceFilter : SourceFilter.getDefault();
+	}
+
+	public void setSourceFilter(SourceFilter sourceFilter) {
+		this.sourceFilter = sourceFilter;
+	}
+
+	/**
+	 * The settings that change which tests are selected for the same index: how terms are analyzed, how
+	 * queries are built and which sources are indexed<br>
+	 * Threads, buffers, batches and storage only change how fast the same results are produced, so they
+	 * are left out and results can be shared across agents and tuning changes
+	 * @return
+	 */
+	public String getSelectionSettings() {
+		return "analyzer=" + CodeAnalyzer.VERSION + ", maxQueryClauses=" + getMaxQueryClauses() + ", classBoost=" + getClassBoost()
+				+ ", methodBoost=" + getMethodBoost() + ", sources=[" + getSourceFilter() + "]";
+	}
+
+	@Override
+	public String toString() {
+		return "threads=" + getIndexThreads() + ", maxInFlightFiles=" + getMaxInFlightFiles()
+				+ ", ramBufferMB=" + getRamBufferMB() + ", batchSize=" + getIndexBatchSize()
+				+ ", commitBatchSize=" + getCommitBatchSize() + ", queryThreads=" + getQueryThreads()
+				+ ", maxQueryClauses=" + getMaxQueryClauses() + ", classBoost=" + getClassBoost()
+				+ ", methodBoost=" + getMethodBoost() + ", layout=" + getIndexLayout()
+				+ ", directory=" + getDirectoryType() + ", sources=[" + getSourceFilter() + "]";
+	}
+}
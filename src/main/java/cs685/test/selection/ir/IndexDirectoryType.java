@@ -0,0 +1,104 @@
+package cs685.test.selection.ir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * How a project's Lucene index is stored and read
+ *
+ */
+public enum IndexDirectoryType {
+	/**
+	 * Lets Lucene pick the best on-disk implementation for the platform (memory mapped on 64 bit JVMs)
+	 */
+	DEFAULT("Default (chosen by Lucene)") {
+		@Override
+		public Directory open(Path path) throws IOException {
+			return FSDirectory.open(path);
+		}
+	},
+	/**
+	 * Memory maps the index files: reads are served from the OS page cache, but use virtual address space
+	 * proportional to the index size
+	 */
+	MMAP("Memory mapped files") {
+		@Override
+		public Directory open(Path path) throws IOException {
+			return new MMapDirectory(path);
+		}
+	},
+	/**
+	 * Reads the index files with positional NIO reads: no address space cost, but every read is a system call.
+	 * Useful on 32 bit JVMs or when virtual memory is restricted
+	 */
+	NIOFS("NIO file reads") {
+		@Override
+		public Directory open(Path path) throws IOException {
+			return new NIOFSDirectory(path);
+		}
+	},
+	/**
+	 * Keeps the index on the heap only: nothing is written to the controller's disk, but the index is rebuilt
+	 * from the workspace whenever it is opened, and costs heap proportional to its size. Suited to small
+	 * projects and ephemeral controllers
+	 */
+	RAM("In memory (rebuilt from the workspace)") {
+		@Override
+		public Directory open(Path path) throws IOException {
+			return new RAMDirectory();
+		}
+
+		@Override
+		public boolean isPersistent() {
+			return false;
+		}
+	};
+
+	private final String displayName;
+
+	private IndexDirectoryType(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return this.displayName;
+	}
+
+	/**
+	 * Opens the index stored at the given path
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public abstract Directory open(Path path) throws IOException;
+
+	/**
+	 * True if the index outlives the JVM, so its manifest is kept on disk
+	 * @return
+	 */
+	public boolean isPersistent() {
+		return true;
+	}
+
+	/**
+	 * Returns the type with the given name, or DEFAULT if the name is empty or unknown
+	 * @param name
+	 * @return
+	 */
+	public static IndexDirectoryType fromName(String name) {
+		if (name != null) {
+			for (IndexDirectoryType type : values()) {
+				if (type.name().equals(name)) {
+					return type;
+				}
+			}
+		}
+		return DEFAULT;
+	}
+}
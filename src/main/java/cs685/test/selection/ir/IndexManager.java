@@ -1,6 +1,7 @@
 package cs685.test.selection.ir;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -16,6 +17,7 @@ public class IndexManager {
 	private FilePath root;
 	private String projectName;
 	private Set<String> filesToUpdate;
+	private IndexConfig config;
 	
 	/**
 	 * Returns the current indexer or a new one
@@ -25,7 +27,7 @@ public class IndexManager {
 	 */
 	private synchronized Indexer getIndexer() throws IOException, InterruptedException {
 		if (instance == null) {
-			instance = new Indexer(root, projectName, filesToUpdate);
+			instance = new Indexer(root, projectName, filesToUpdate, config);
 		}
 		return instance;
 	}
@@ -35,25 +37,59 @@ public class IndexManager {
 	 * @param root
 	 * @param projectName
 	 * @param filesToUpdate
+	 * @param config
 	 */
-	public IndexManager(FilePath root, String projectName, Set<String> filesToUpdate) {
+	public IndexManager(FilePath root, String projectName, Set<String> filesToUpdate, IndexConfig config) {
 		this.root = root;
 		this.projectName = projectName;
 		this.filesToUpdate = filesToUpdate;
+		this.config = config;
 	}
 	
 	/**
-	 * Returns the top n documents as TestCase objects given the query
-	 * @param query
-	 * @param n
+	 * Selects at most k tests by fusing the rankings of every query, see Indexer.fuse
+	 * @param queries
+	 * @param cutoff decides how many hits of each query are fused
+	 * @param k
 	 * @return
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	public List<TestCase> getHits(String query, int n) throws IOException, InterruptedException {
-        List<TestCase> hits = getIndexer().getHits(query, n);
-        return hits;
-    }
+	public List<SelectedTest> selectTests(List<Query> queries, ScoreCutoff cutoff, int k)
+			throws IOException, InterruptedException {
+		QueryBuilder builder = new QueryBuilder(config);
+		List<org.apache.lucene.search.Query> luceneQueries = new ArrayList<org.apache.lucene.search.Query>();
+		List<List<String>> sources = new ArrayList<List<String>>();
+		for (Query query : queries) {
+			luceneQueries.add(builder.build(query));
+			sources.add(query.getHunks());
+		}
+		return getIndexer().fuse(luceneQueries, sources, cutoff, k);
+	}
+	
+	/**
+	 * Returns the generation of the last commit of a project's index, or -1 if it has none<br>
+	 * Commits without changes are skipped by Lucene, so the generation only moves when documents are
+	 * added or removed, and results computed over the index can be cached by it. The index is not opened
+	 * to read it, see IndexRegistry.getCommitGeneration
+	 * @param projectName
+	 * @param config
+	 * @return
+	 * @throws IOException
+	 */
+	public static long getIndexGeneration(String projectName, IndexConfig config) throws IOException {
+		return IndexRegistry.getInstance().getCommitGeneration(projectName, config);
+	}
+	
+	/**
+	 * Returns the scan of the workspace the index was built from, building the index if needed
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public WorkspaceScan getWorkspaceScan() throws IOException, InterruptedException {
+		return getIndexer().getWorkspaceScan();
+	}
 	
 	public void close() throws IOException, InterruptedException {
 		getIndexer().close();
@@ -0,0 +1,206 @@
+package cs685.test.selection.ir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent record of every Java file that was indexed for a project<br>
+ * Maps each file path (relative to the workspace) to its size, modification time,
+ * content hash and the keys of the test documents it produced, so unchanged files
+ * are not parsed again and deleted files can be removed from the index
+ *
+ */
+public class IndexManifest {
+	private static final String MANIFEST_FILENAME = "manifest.txt";
+	private static final String HEADER = "# test-selection index manifest v5 layout=";
+	private static final String KEY_SEPARATOR = ";";
+
+	private final File file;
+	private final String header;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean loaded;
+	private boolean dirty;
+
+	private IndexManifest(File file, String layout) {
+		this.file = file;
+		this.header = HEADER + layout;
+	}
+
+	/**
+	 * Loads the manifest stored within the given index directory<br>
+	 * Returns an empty manifest if none exists or it was written in an unknown format or index layout
+	 * @param indexProjectPath
+	 * @param layout the document layout of the index
+	 * @return
+	 * @throws IOException
+	 */
+	public static IndexManifest load(File indexProjectPath, String layout) throws IOException {
+		IndexManifest manifest = new IndexManifest(new File(indexProjectPath, MANIFEST_FILENAME), layout);
+		if (!manifest.file.isFile()) {
+			return manifest;
+		}
+		try (BufferedReader br = Files.newBufferedReader(manifest.file.toPath(), StandardCharsets.UTF_8)) {
+			String header = br.readLine();
+			if (!manifest.header.equals(header)) {
+				System.out.println("Ignoring manifest with unknown header: [" + header + "]");
+				return manifest;
+			}
+			manifest.loaded = true;
+			for (String line; (line = br.readLine()) != null;) {
+				String[] parts = line.split("\t", -1);
+				if (parts.length != 5) {
+					System.out.println("Ignoring malformed manifest line: [" + line + "]");
+					continue;
+				}
+				List<String> keys = parts[4].isEmpty()
+						? Collections.<String>emptyList()
+						: Arrays.asList(parts[4].split(KEY_SEPARATOR));
+				manifest.entries.put(parts[0],
+						new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], keys));
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Returns an empty manifest that is only kept in memory, for indexes that are not persisted
+	 * @param layout the document layout of the index
+	 * @return
+	 */
+	public static IndexManifest inMemory(String layout) {
+		return new IndexManifest(null, layout);
+	}
+
+	/**
+	 * True if the manifest was loaded from or saved to disk, and so describes an existing index
+	 * @return
+	 */
+	public boolean exists() {
+		return this.loaded;
+	}
+
+	public Entry get(String path) {
+		return this.entries.get(path);
+	}
+
+	public void put(String path, Entry entry) {
+		this.entries.put(path, entry);
+		this.dirty = true;
+	}
+
+	public Entry remove(String path) {
+		this.dirty = true;
+		return this.entries.remove(path);
+	}
+
+	/**
+	 * Removes every entry, so the manifest no longer describes an existing index until it is saved
+	 */
+	public void clear() {
+		this.entries.clear();
+		this.loaded = false;
+		this.dirty = true;
+	}
+
+	/**
+	 * The file paths currently recorded
+	 * @return
+	 */
+	public Set<String> paths() {
+		return this.entries.keySet();
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Writes the manifest to disk if it changed, replacing the previous version atomically<br>
+	 * An in-memory manifest is only marked as describing an existing index
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (!this.dirty) {
+			return;
+		}
+		if (this.file == null) {
+			this.loaded = true;
+			this.dirty = false;
+			return;
+		}
+		File tmp = new File(this.file.getParentFile(), MANIFEST_FILENAME + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(this.header);
+			writer.newLine();
+			for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+				Entry entry = e.getValue();
+				writer.write(e.getKey());
+				writer.write('\t');
+				writer.write(Long.toString(entry.getLastModified()));
+				writer.write('\t');
+				writer.write(Long.toString(entry.getLength()));
+				writer.write('\t');
+				writer.write(entry.getHash());
+				writer.write('\t');
+				writer.write(String.join(KEY_SEPARATOR, entry.getDocumentKeys()));
+				writer.newLine();
+			}
+		}
+		Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		this.loaded = true;
+		this.dirty = false;
+	}
+
+	/**
+	 * Returns the size, modification time and hash recorded for every file
+	 * @return
+	 */
+	public Map<String, FileState> fileStates() {
+		Map<String, FileState> states = new HashMap<String, FileState>();
+		for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+			// Copied so the document keys are not sent along with the states
+			Entry entry = e.getValue();
+			states.put(e.getKey(), new FileState(entry.getLastModified(), entry.getLength(), entry.getHash()));
+		}
+		return states;
+	}
+
+	/**
+	 * What is known about a single indexed file: its state and the keys of the documents it produced
+	 */
+	public static class Entry extends FileState {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> documentKeys;
+
+		public Entry(FileState state, List<String> documentKeys) {
+			this(state.getLastModified(), state.getLength(), state.getHash(), documentKeys);
+		}
+
+		public Entry(long lastModified, long length, String hash, List<String> documentKeys) {
+			super(lastModified, length, hash);
+			this.documentKeys = new ArrayList<String>(documentKeys);
+		}
+
+		/**
+		 * Keys of the test documents this file produced
+		 * @return
+		 */
+		public List<String> getDocumentKeys() {
+			return this.documentKeys;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package cs685.test.selection.ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the indexes of recently built projects open across builds<br>
+ * Each project's Directory, IndexWriter, SearcherManager and manifest stay warm in a
+ * Handle until it is evicted: least recently used first when too many indexes or index
+ * files are open, or once it has been idle for too long. Handles in use by a build are
+ * never evicted
+ *
+ */
+public final class IndexRegistry {
+	private static final String PROPERTY_PREFIX = IndexRegistry.class.getName() + ".";
+	private static final int MAX_OPEN_INDEXES = Integer.getInteger(PROPERTY_PREFIX + "maxOpenIndexes", 8);
+	private static final int MAX_OPEN_FILES = Integer.getInteger(PROPERTY_PREFIX + "maxOpenFiles", 1024);
+	private static final long IDLE_TIMEOUT_MILLIS = Long.getLong(PROPERTY_PREFIX + "idleTimeoutMinutes", 30L) * 60 * 1000;
+
+	private static final IndexRegistry INSTANCE = new IndexRegistry();
+
+	// Access ordered, so iteration starts with the least recently used handle
+	private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+	private IndexRegistry() {
+	}
+
+	public static IndexRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the open index of the given project, opening it if needed<br>
+	 * Every handle acquired must be given back with release
+	 * @param projectName
+	 * @param config
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized Handle acquire(String projectName, IndexConfig config) throws IOException {
+		Handle handle = this.handles.get(projectName);
+		if (handle != null && handle.references == 0 && (!handle.layout.equals(config.getIndexLayout())
+				|| handle.directoryType != config.getDirectoryType())) {
+			System.out.println("Index settings of " + projectName + " changed, reopening it");
+			this.handles.remove(projectName);
+			handle.close();
+			handle = null;
+		}
+		if (handle == null) {
+			handle = new Handle(projectName, config);
+			this.handles.put(projectName, handle);
+		} else {
+			System.out.println("Reusing the open index of " + projectName);
+		}
+		handle.references++;
+		handle.lastUsed = System.currentTimeMillis();
+		evict(false);
+		return handle;
+	}
+
+	/**
+	 * Returns the generation of the last commit of a project's index, or -1 if it has none<br>
+	 * The index is not opened for this: the generation is read from an open handle if there is one,
+	 * or else from a listing of the index directory
+	 * @param projectName
+	 * @param config
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized long getCommitGeneration(String projectName, IndexConfig config) throws IOException {
+		Handle handle = this.handles.get(projectName);
+		if (handle != null) {
+			return SegmentInfos.getLastCommitGeneration(handle.directory);
+		}
+		if (!config.getDirectoryType().isPersistent()) {
+			// Rebuilt whenever it is opened
+			return -1;
+		}
+		String[] files = getIndexPath(projectName).list();
+		return files == null ? -1 : SegmentInfos.getLastCommitGeneration(files);
+	}
+
+	private static File getIndexPath(String projectName) {
+		return new File(new File(Jenkins.getInstance().getRootDir(), "luceneIndex"), projectName);
+	}
+
+	/**
+	 * Gives back a handle returned by acquire
+	 * @param handle
+	 */
+	public synchronized void release(Handle handle) {
+		handle.references--;
+		handle.lastUsed = System.currentTimeMillis();
+		if (handle.discarded && handle.references == 0) {
+			handle.close();
+		}
+		evict(false);
+	}
+
+	/**
+	 * Drops the handle of an index whose update failed<br>
+	 * The writer is rolled back to the last commit, so no later commit persists a half-updated index, and the
+	 * handle is closed once released. The next build opens the index again and reloads its manifest
+	 * @param handle
+	 */
+	public synchronized void discard(Handle handle) {
+		if (this.handles.get(handle.projectName) == handle) {
+			this.handles.remove(handle.projectName);
+		}
+		if (!handle.discarded) {
+			handle.discarded = true;
+			System.out.println("Rolling back the index of " + handle.projectName);
+			try {
+				handle.writer.rollback();
+			} catch (IOException e) {
+				System.out.println("ERROR: could not roll back the index of " + handle.projectName + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Closes unused handles beyond the configured limits, and idle ones if requested
+	 * @param evictIdle
+	 */
+	private synchronized void evict(boolean evictIdle) {
+		long now = System.currentTimeMillis();
+		int openFiles = 0;
+		for (Handle handle : this.handles.values()) {
+			openFiles += handle.openFiles();
+		}
+		Iterator<Handle> it = this.handles.values().iterator();
+		while (it.hasNext()) {
+			Handle handle = it.next();
+			if (handle.references > 0) {
+				continue;
+			}
+			boolean idle = evictIdle && now - handle.lastUsed > IDLE_TIMEOUT_MILLIS;
+			if (idle || this.handles.size() > MAX_OPEN_INDEXES || openFiles > MAX_OPEN_FILES) {
+				System.out.println("Closing the index of " + handle.projectName + (idle ? " (idle)" : ""));
+				openFiles -= handle.openFiles();
+				it.remove();
+				handle.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes every handle that is not in use
+	 */
+	private synchronized void closeAll() {
+		Iterator<Handle> it = this.handles.values().iterator();
+		while (it.hasNext()) {
+			Handle handle = it.next();
+			if (handle.references == 0) {
+				it.remove();
+				handle.close();
+			}
+		}
+	}
+
+	@Terminator
+	public static void shutdown() {
+		getInstance().closeAll();
+	}
+
+	/**
+	 * Periodically closes indexes that have not been used recently
+	 */
+	@Extension
+	public static class IdleSweeper extends AsyncPeriodicWork {
+		public IdleSweeper() {
+			super("Test selection index sweeper");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return MIN * 5;
+		}
+
+		@Override
+		protected void execute(TaskListener listener) {
+			getInstance().evict(true);
+		}
+	}
+
+	/**
+	 * The open index of a single project<br>
+	 * Builds that update the index must synchronize on the handle
+	 */
+	public static final class Handle {
+		private final String projectName;
+		private final String layout;
+		private final IndexDirectoryType directoryType;
+		private final File indexProjectPath;
+		private final Directory directory;
+		private final Analyzer analyzer;
+		private final IndexWriter writer;
+		private final SearcherManager searcherManager;
+		private final IndexManifest manifest;
+		private int references;
+		private long lastUsed;
+		private boolean discarded;
+
+		private Handle(String projectName, IndexConfig config) throws IOException {
+			this.projectName = projectName;
+			this.layout = config.getIndexLayout();
+			this.directoryType = config.getDirectoryType();
+			this.indexProjectPath = getIndexPath(projectName);
+			this.analyzer = new CodeAnalyzer();
+			long start = System.nanoTime();
+			this.directory = this.directoryType.open(this.indexProjectPath.toPath());
+			IndexWriter writer = null;
+			try {
+				this.manifest = this.directoryType.isPersistent()
+						? IndexManifest.load(this.indexProjectPath, this.layout)
+						: IndexManifest.inMemory(this.layout);
+
+				// Check if we can load from file, so we can add all test documents or only update test documents
+				if (DirectoryReader.indexExists(this.directory) && this.manifest.exists()) {
+					System.out.println("We already have an index! Its manifest lists " + this.manifest.size() + " files");
+				} else if (DirectoryReader.indexExists(this.directory)) {
+					System.out.println("We have an index without a manifest, rebuilding it!");
+					this.manifest.clear();
+				} else {
+					System.out.println("No index exists, creating a new one!");
+					this.manifest.clear();
+				}
+
+				IndexWriterConfig writerConfig = new IndexWriterConfig(this.analyzer);
+				// Bound the memory used by buffered documents before they are flushed to a segment
+				writerConfig.setRAMBufferSizeMB(config.getRamBufferMB());
+				writer = new IndexWriter(this.directory, writerConfig);
+				// Near-real-time searchers are opened from the writer rather than from the last commit
+				this.searcherManager = new SearcherManager(writer, true, null);
+			} catch (IOException | RuntimeException e) {
+				// Such as the write lock being held, the directory would be left open
+				IOUtils.closeQuietly(writer);
+				IOUtils.closeQuietly(this.directory);
+				throw e;
+			}
+			this.writer = writer;
+			System.out.println("Opened the index of " + projectName + " with " + this.directoryType + " in "
+					+ Long.toString((System.nanoTime() - start) / 1000000) + " ms");
+		}
+
+		public String getProjectName() {
+			return this.projectName;
+		}
+
+		public Directory getDirectory() {
+			return this.directory;
+		}
+
+		public Analyzer getAnalyzer() {
+			return this.analyzer;
+		}
+
+		public IndexWriter getWriter() {
+			return this.writer;
+		}
+
+		public SearcherManager getSearcherManager() {
+			return this.searcherManager;
+		}
+
+		public IndexManifest getManifest() {
+			return this.manifest;
+		}
+
+		/**
+		 * Number of files in the index directory, an estimate of the file handles it holds
+		 * @return
+		 */
+		private int openFiles() {
+			try {
+				return this.directory.listAll().length;
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+
+		private void close() {
+			IOUtils.closeQuietly(this.searcherManager);
+			IOUtils.closeQuietly(this.writer);
+			IOUtils.closeQuietly(this.directory);
+		}
+	}
+}
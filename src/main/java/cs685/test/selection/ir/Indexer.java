@@ -1,48 +1,48 @@
 package cs685.test.selection.ir;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.SimpleAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
-import com.github.javaparser.JavaParser;
-import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.NodeList;
-import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.Parameter;
 import com.github.javaparser.ast.comments.Comment;
-import com.github.javaparser.ast.expr.AnnotationExpr;
 import com.github.javaparser.ast.stmt.BlockStmt;
 import com.github.javaparser.ast.stmt.Statement;
 
 import hudson.FilePath;
-import jenkins.model.Jenkins;
 
 /**
  * Indexes documents on Apache Lucene
@@ -50,53 +50,88 @@ import jenkins.model.Jenkins;
  *
  */
 public class Indexer {
-	private static final String CLASS_NAME_FIELD = "class_name";
-	private static final String METHOD_NAME_FIELD = "method_name";
-	private static final String PARAMETERS_FIELD = "parameters";
-	private static final String CONTENT_FIELD = "content";
+	static final String CLASS_NAME_FIELD = "class_name";
+	static final String METHOD_NAME_FIELD = "method_name";
+	static final String PARAMETERS_FIELD = "parameters";
+	static final String CONTENT_FIELD = "content";
+	// Untokenized fields identifying a document and the file it was built from
+	private static final String KEY_FIELD = "key";
+	private static final String FILE_FIELD = "file";
+	
+	// Damps the weight of the very first ranks in reciprocal rank fusion
+	private static final int RRF_RANK_CONSTANT = 60;
+	// Smaller batches are searched faster than their tasks would be handed over
+	private static final int PARALLEL_SEARCH_THRESHOLD = 8;
+	// Searches of every build, bounded however many builds select tests at once
+	private static final ExecutorService SEARCH_EXECUTOR = Executors.newFixedThreadPool(
+			Math.min(Runtime.getRuntime().availableProcessors(), IndexConfig.DEFAULT_MAX_QUERY_THREADS),
+			new ThreadFactory() {
+				private final AtomicInteger threads = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Test selection search " + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 	
 	private static final org.apache.lucene.document.Field.Store STORE = org.apache.lucene.document.Field.Store.YES;
+	private static final org.apache.lucene.document.Field.Store NO_STORE = org.apache.lucene.document.Field.Store.NO;
 	
-	private File indexPath = new File(Jenkins.getInstance().getRootDir(), "luceneIndex");
-	private File indexProjectPath;
-	private final String projectName;
+	private final IndexConfig config;
+	private final IndexRegistry.Handle handle;
+	private final IndexManifest manifest;
 	
-	private final Directory index;
 	private final IndexWriter dbWriter;
-	private final Analyzer analyzer;
-	private DirectoryReader reader;
+	private final SearcherManager searcherManager;
+	private int pendingOperations;
+	private boolean closed;
+	private WorkspaceScan scan;
 
 	/**
 	 * Constructs the Indexer
-	 * Sets the project name, index path, and index location
+	 * Acquires the project's index from the IndexRegistry and brings it up to date with the workspace
 	 * @param root
+	 * @param projectName
+	 * @param filesToUpdate
+	 * @param config
 	 * @throws IOException
 	 * @throws InterruptedException 
 	 */
-	public Indexer(FilePath root, String projectName, Set<String> filesToUpdate) throws IOException, InterruptedException {
-		this.projectName = projectName;
-		this.indexProjectPath = new File(this.indexPath, this.projectName);
-		this.analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
-		this.index = FSDirectory.open(this.indexProjectPath.toPath());
-		
-		// Check if we can load from file, so we can add all test documents or only update test documents
-		boolean indexExists = false;
-		if (DirectoryReader.indexExists(this.index)) {
-			System.out.println("We already have an index!");
-			indexExists = true;
-		} else {
-			System.out.println("No index exists, creating a new one!");
+	public Indexer(FilePath root, String projectName, Set<String> filesToUpdate, IndexConfig config) throws IOException, InterruptedException {
+		this.config = config;
+		this.handle = IndexRegistry.getInstance().acquire(projectName, config);
+		this.manifest = this.handle.getManifest();
+		this.dbWriter = this.handle.getWriter();
+		this.searcherManager = this.handle.getSearcherManager();
+		try {
+			// Only one build at a time may update a project's index
+			synchronized (this.handle) {
+				// Check if we can update the index, or have to add all test documents
+				boolean indexExists = this.manifest.exists();
+				if (!indexExists) {
+					this.dbWriter.deleteAll();
+				}
+				buildDocuments(root, filesToUpdate, indexExists);
+			}
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			// Rolls the writer back, so the queued part of the update is never committed
+			IndexRegistry.getInstance().discard(this.handle);
+			close();
+			throw e;
 		}
-		
-		IndexWriterConfig config = new IndexWriterConfig(analyzer);
-		this.dbWriter = new IndexWriter(this.index, config);
-		updateReader();
-		buildDocuments(root, filesToUpdate, indexExists);
 	}
 	
 	/**
-	 * Builds all documents on the index given the FilePath
-	 * Updates the documents within filesToUpdate if the index already exists
+	 * Builds all documents on the index given the FilePath<br>
+	 * The workspace is scanned where it lives by a WorkspaceScanner, so for agent builds only compact
+	 * test records cross the remoting channel. If the index already exists, only files whose content
+	 * changed since the last build (according to the manifest) are parsed again, and files that no
+	 * longer exist are removed from the index. Files in filesToUpdate are always hashed, even if their
+	 * size and modification time did not change<br>
+	 * Changed files are summarized by a SummaryLoader config.getMaxInFlightFiles() at a time, and each batch
+	 * is indexed before the next is loaded, so memory is bounded by the batch rather than by the workspace
 	 * @param root
 	 * @param filesToUpdate
 	 * @param indexExists
@@ -109,269 +144,526 @@ public class Indexer {
 		for (String s : filesToUpdate) {
 			System.out.println("\t"+s);
 		}
+		System.out.println("Indexing with " + this.config);
 		
-		// Iterate over the entire directory
-		Stack<FilePath> toProcess = new Stack<>();
-        toProcess.push(root);
-        int ignoredFiles = 0;
-        int testCaseMethods = 0;
-        int nonTestCaseMethods = 0;
-        while (!toProcess.isEmpty()) {
-            FilePath path = toProcess.pop();
-            if (path.isDirectory()) {
-            	// If directory, add all content within it to the stack
-                toProcess.addAll(path.list());
-            } else if (path.getName().endsWith(".java")) {
-            	// If a java file, parse it.
-            	CompilationUnit cu = JavaParser.parse(path.read());
-				// Get the class names
-				List<ClassOrInterfaceDeclaration> classes = cu.findAll(ClassOrInterfaceDeclaration.class);
-				for (ClassOrInterfaceDeclaration classDeclaration : classes) {
-					// Get class name and parse it
-					String className = classDeclaration.getName().asString(); // Keep class name unparsed for future use
-					// Parse class name to add to NL documents
-					String parsedClassName = parseCamelCase(className).toLowerCase();
-					parsedClassName = InformationRetriever.removeStopwords(parsedClassName);
-					List<MethodDeclaration> methods = classDeclaration.getChildNodesByType(MethodDeclaration.class);
-					for (MethodDeclaration method : methods) {
-						boolean isTestCase = false;
-						boolean isIgnored = false;
-						NodeList<AnnotationExpr> annotations = method.getAnnotations();
-						for (AnnotationExpr annotation : annotations) {
-							if (annotation.getNameAsString().equals("Test")) {
-								isTestCase = true;
-							}
-							else if (annotation.getNameAsString().equals("Ignore")) {
-								isIgnored = true;
-							}
-						}
-						if (isTestCase) {
-							String methodName = method.getName().asString();
-							List<String> parametersList = new ArrayList<String>();
-							for (Parameter parameter : method.getParameters()) {
-								parametersList.add(parameter.getTypeAsString());
-							}
-							String parameters = String.join(",", parametersList);
-							
-							// Create a document based on the current test method
-							Document document = buildDocument(className, methodName, parameters, 
-									getMethodContent(method, parsedClassName));
-							
-							// TODO: add checks for deleted files
-							if (indexExists) {
-								// Calculate the filepath of the current file
-								String currFilePathSplit[] = path.getRemote().split(this.projectName);
-								String currFilePath = null;
-								if (currFilePathSplit.length != 2) {
-									System.out.println("ERROR: File not in project's directory? [" + currFilePath + "]");
-								} else {
-									currFilePath = currFilePathSplit[1].substring(1); // remove the leading forward slash
-								}
-								if (filesToUpdate.contains(currFilePath)) {
-									System.out.println("Our index already contains " +currFilePath + " and it needs to be updated!");
-									// Remove the old document, add the new one
-									removeDoc(className, methodName, parameters);
-									// Only add again if the test case is not @Ignore
-									if (!isIgnored) {
-										storeDoc(document);
-									}
-								} // Else, we will skip adding documents that don't need to be updated
-								else {
-									System.out.println("No need to update at this time: " + currFilePath);
-								}
-							} else {
-								// Add all documents if we didn't have an index
-								this.dbWriter.addDocument(document);
-							}
-							
-							testCaseMethods++;
-						} else {
-							nonTestCaseMethods++;
-						}
-					}
+		WorkspaceScan scan = root.act(new WorkspaceScanner(this.manifest.fileStates(), filesToUpdate, this.config));
+		this.scan = scan;
+		System.out.println("Scanned " + Integer.toString(scan.getDirectories()) + " directories (pruned "
+				+ Integer.toString(scan.getPrunedDirectories()) + ") and "
+				+ Integer.toString(scan.getFiles().size() + scan.getIgnoredFiles()) + " files ("
+				+ Integer.toString(scan.getFiles().size()) + " Java files) in "
+				+ Long.toString(scan.getScanMillis()) + " ms");
+		System.out.println("Test pre-filter skipped parsing " + Integer.toString(scan.getRejectedFiles()) + " files");
+		
+		List<Document> batch = new ArrayList<Document>();
+		Set<String> seenFiles = new HashSet<String>();
+		IndexStats stats = new IndexStats();
+		stats.ignoredFiles = scan.getIgnoredFiles();
+		// Documents are analyzed as they are written, so time the writes to measure analysis throughput
+		long writeStart = System.nanoTime();
+		long tokensBefore = CodeAnalyzer.getTokenCount();
+		List<WorkspaceScan.ScannedFile> pending = new ArrayList<WorkspaceScan.ScannedFile>();
+		for (WorkspaceScan.ScannedFile scannedFile : scan.getFiles()) {
+			seenFiles.add(scannedFile.getRelativePath());
+			if (scannedFile.isPending()) {
+				pending.add(scannedFile);
+				if (pending.size() >= this.config.getMaxInFlightFiles()) {
+					writePendingFiles(root, pending, filesToUpdate, indexExists, batch, stats);
 				}
 			} else {
-				ignoredFiles++;
+				writeScannedFile(scannedFile, indexExists, batch, stats);
+			}
+		}
+		writePendingFiles(root, pending, filesToUpdate, indexExists, batch, stats);
+		flushBatch(batch);
+		System.out.println("Parse cache: " + Long.toString(scan.getParseCacheHits()) + " hits, "
+				+ Long.toString(scan.getParseCacheMisses()) + " misses, "
+				+ Integer.toString(scan.getParseCacheSize()) + " cached summaries, "
+				+ Integer.toString(scan.getRemoteCalls()) + " remote calls");
+		long writeNanos = System.nanoTime() - writeStart;
+		long tokens = CodeAnalyzer.getTokenCount() - tokensBefore;
+		System.out.println("Analyzed " + Long.toString(tokens) + " tokens in " + Long.toString(writeNanos / 1000000)
+				+ " ms (" + Long.toString(writeNanos > 0 ? tokens * 1000000000L / writeNanos : 0) + " tokens/sec)");
+		
+		// Remove the documents of deleted (or renamed) files
+		if (indexExists) {
+			for (String relativePath : new ArrayList<String>(this.manifest.paths())) {
+				if (!seenFiles.contains(relativePath)) {
+					System.out.println("File was deleted, removing its documents: " + relativePath);
+					this.manifest.remove(relativePath);
+					removeFile(relativePath);
+					stats.deletedFiles++;
+				}
 			}
 		}
         
-        // Make sure all documents are committed
-        updateReader();
+        // Make sure all documents are committed before the manifest refers to them
+        commit();
+        this.manifest.save();
         
-        System.out.println(Integer.toString(testCaseMethods) + " test case methods found.");
-        System.out.println(Integer.toString(nonTestCaseMethods) + " other methods found.");
-        System.out.println(Integer.toString(ignoredFiles) + " non-Java files found.");
+        System.out.println(Integer.toString(stats.testCaseMethods) + " test case methods found.");
+        System.out.println(Integer.toString(stats.nonTestCaseMethods) + " other methods found.");
+        System.out.println(Integer.toString(stats.ignoredFiles) + " non-Java files found.");
+        System.out.println(Integer.toString(stats.parsedFiles) + " Java files parsed, "
+        		+ Integer.toString(stats.unchangedFiles) + " unchanged, "
+        		+ Integer.toString(stats.deletedFiles) + " deleted.");
+        System.out.println(Integer.toString(stats.failedFiles) + " Java files could not be parsed.");
 
-        System.out.println("Indexed documents:");
-        for (int i = 0; i < reader.maxDoc(); i++) {
-        	//dont care about deletions for now...
-        	Document d = this.reader.document(i);
-        	System.out.println("Document["+Integer.toString(i)+"]: " + 
-        			d.get(CLASS_NAME_FIELD)+"." +
-        			d.get(METHOD_NAME_FIELD)+"("+
-        			d.get(PARAMETERS_FIELD)+")");
+        IndexSearcher searcher = this.searcherManager.acquire();
+        try {
+        	System.out.println("Indexed documents: " + Integer.toString(searcher.getIndexReader().numDocs())
+        			+ " (" + this.config.getIndexLayout() + " layout, " + Long.toString(indexSize() / 1024) + " KB on disk)");
+        } finally {
+        	this.searcherManager.release(searcher);
         }
 	}
+	
+	/**
+	 * Returns the scan of the workspace this index was built from
+	 * @return
+	 */
+	public WorkspaceScan getWorkspaceScan() {
+		return this.scan;
+	}
+	
+	/**
+	 * Returns the total size in bytes of the files in the index directory
+	 * @return
+	 * @throws IOException
+	 */
+	private long indexSize() throws IOException {
+		long size = 0;
+		Directory index = this.handle.getDirectory();
+		for (String file : index.listAll()) {
+			size += index.fileLength(file);
+		}
+		return size;
+	}
+	
+	/**
+	 * Summarizes a batch of pending files where the workspace lives, writes their documents and empties the batch<br>
+	 * Only the summaries of the files in filesToUpdate are kept, in the scan, to map the diffs to declarations
+	 * @param root
+	 * @param pending
+	 * @param filesToUpdate
+	 * @param indexExists
+	 * @param batch
+	 * @param stats
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void writePendingFiles(FilePath root, List<WorkspaceScan.ScannedFile> pending, Set<String> filesToUpdate,
+			boolean indexExists, List<Document> batch, IndexStats stats) throws IOException, InterruptedException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		WorkspaceScan loaded = root.act(new SummaryLoader(pending, this.config));
+		this.scan.loaded(loaded, filesToUpdate);
+		for (WorkspaceScan.ScannedFile scannedFile : loaded.getFiles()) {
+			writeScannedFile(scannedFile, indexExists, batch, stats);
+		}
+		pending.clear();
+	}
+	
+	/**
+	 * Writes the documents of a scanned file to the index and records it in the manifest<br>
+	 * Documents are added in batches when the index is built from scratch. Otherwise they
+	 * replace their previous version by key, and keys a changed file no longer produces are deleted
+	 * @param scannedFile
+	 * @param indexExists
+	 * @param batch
+	 * @param stats
+	 * @throws IOException
+	 */
+	private void writeScannedFile(WorkspaceScan.ScannedFile scannedFile, boolean indexExists, List<Document> batch,
+			IndexStats stats) throws IOException {
+		if (scannedFile.isFailed()) {
+			// Keep the documents from the last time the file could be parsed
+			stats.failedFiles++;
+			return;
+		}
+		String relativePath = scannedFile.getRelativePath();
+		IndexManifest.Entry previous = this.manifest.get(relativePath);
+		if (scannedFile.isUnchanged()) {
+			List<String> keys = previous != null ? previous.getDocumentKeys() : Collections.<String>emptyList();
+			this.manifest.put(relativePath, new IndexManifest.Entry(scannedFile.getState(), keys));
+			stats.unchangedFiles++;
+			return;
+		}
+		stats.parsedFiles++;
+		stats.testCaseMethods += scannedFile.getTestCaseMethods();
+		stats.nonTestCaseMethods += scannedFile.getNonTestCaseMethods();
+		
+		// Create a document for each test method
+		List<Document> documents = new ArrayList<Document>();
+		List<String> keys = new ArrayList<String>();
+		for (TestCase testCase : scannedFile.getTestCases()) {
+			documents.add(buildDocument(relativePath, testCase.getClassName(), testCase.getMethodName(),
+					testCase.getParameters(), testCase.getContent(), this.config.isStoreContent()));
+			keys.add(documentKey(relativePath, testCase.getClassName(), testCase.getMethodName(), testCase.getParameters()));
+		}
+		this.manifest.put(relativePath, new IndexManifest.Entry(scannedFile.getState(), keys));
+		
+		if (indexExists) {
+			if (previous != null) {
+				System.out.println("Our index already contains " + relativePath + " and it needs to be updated!");
+				Set<String> newKeys = new HashSet<String>(keys);
+				for (String key : previous.getDocumentKeys()) {
+					if (!newKeys.contains(key)) {
+						removeDoc(key);
+					}
+				}
+			}
+			for (Document document : documents) {
+				storeDoc(document);
+			}
+			return;
+		}
+		for (Document document : documents) {
+			batch.add(document);
+			if (batch.size() >= this.config.getIndexBatchSize()) {
+				flushBatch(batch);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the batched documents to the index and empties the batch
+	 * @param batch
+	 * @throws IOException
+	 */
+	private void flushBatch(List<Document> batch) throws IOException {
+		if (!batch.isEmpty()) {
+			this.dbWriter.addDocuments(batch);
+			operationsQueued(batch.size());
+			batch.clear();
+		}
+	}
 
+	/**
+	 * Gives the index back to the IndexRegistry, which keeps it open for later builds
+	 */
 	public synchronized void close() {
-		IOUtils.closeQuietly(this.dbWriter);
-		IOUtils.closeQuietly(this.index);
+		if (!this.closed) {
+			this.closed = true;
+			IndexRegistry.getInstance().release(this.handle);
+		}
+	}
+	
+	/**
+	 * Counts queued adds and deletes, and commits once config.getCommitBatchSize() are pending
+	 * @param operations
+	 * @throws IOException
+	 */
+	private void operationsQueued(int operations) throws IOException {
+		this.pendingOperations += operations;
+		int commitBatchSize = this.config.getCommitBatchSize();
+		if (commitBatchSize > 0 && this.pendingOperations >= commitBatchSize) {
+			commit();
+		}
 	}
 	
 	/**
-	 * Commits documents to the index and updates the reader
+	 * Commits the queued adds and deletes to the index and refreshes the searchers
 	 * @throws IOException
 	 */
-	private void updateReader() throws IOException {
+	private void commit() throws IOException {
+		long start = System.nanoTime();
+		int operations = this.pendingOperations;
         this.dbWriter.commit();
-        this.reader = DirectoryReader.open(this.index);
+        this.searcherManager.maybeRefresh();
+        this.pendingOperations = 0;
+        System.out.println("Committed " + Integer.toString(operations) + " index operations in "
+        		+ Long.toString((System.nanoTime() - start) / 1000000) + " ms");
     }
 	
 	/**
-	 * Returns the top n documents from the index given a query
-	 * @param query
+	 * Searches every query and fuses their rankings into a single global top k<br>
+	 * Each query contributes 1 / (RRF_RANK_CONSTANT + rank) to the score of each of the top documents kept
+	 * by the cutoff (reciprocal rank fusion), so a test found by many queries, or ranked high by a few, comes
+	 * first whatever the scale of the individual scores. Scores are accumulated in arrays indexed by docID
+	 * @param queries
+	 * @param sources the hunks each query was built from, reported with the tests it found
+	 * @param cutoff decides how many hits of each query are fused
+	 * @param k maximum number of tests returned
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public List<SelectedTest> fuse(List<Query> queries, List<List<String>> sources, ScoreCutoff cutoff, int k)
+			throws IOException, InterruptedException {
+		IndexSearcher searcher = this.searcherManager.acquire();
+		try {
+			ScoreDoc[][] hits = searchBatch(searcher, queries, cutoff.getCeiling());
+			long start = System.nanoTime();
+			float[] scores = new float[searcher.getIndexReader().maxDoc()];
+			// Every (document, query) contribution, to report where each selected test came from
+			int[] kept = new int[hits.length];
+			int contributions = 0;
+			for (int q = 0; q < hits.length; q++) {
+				kept[q] = cutoff.cut(hits[q]);
+				contributions += kept[q];
+			}
+			int[] contributionDocs = new int[contributions];
+			int[] contributionQueries = new int[contributions];
+			int[] touched = new int[contributions];
+			int touchedCount = 0;
+			int c = 0;
+			for (int q = 0; q < hits.length; q++) {
+				for (int rank = 0; rank < kept[q]; rank++) {
+					int doc = hits[q][rank].doc;
+					if (scores[doc] == 0) {
+						touched[touchedCount++] = doc;
+					}
+					scores[doc] += 1.0f / (RRF_RANK_CONSTANT + rank + 1);
+					contributionDocs[c] = doc;
+					contributionQueries[c] = q;
+					c++;
+				}
+			}
+
+			// Global top k of the touched documents. Scores are positive, so the order of their bits is that
+			// of their values: each is sorted with its rank among the touched documents, which breaks ties
+			long[] candidates = new long[touchedCount];
+			for (int i = 0; i < touchedCount; i++) {
+				candidates[i] = ((long) Float.floatToIntBits(scores[touched[i]]) << 32) | (touchedCount - 1 - i);
+			}
+			Arrays.sort(candidates);
+			int selected = Math.min(k, touchedCount);
+			int[] selectedDocs = new int[selected];
+			// Position of each selected document plus one, 0 for the others
+			int[] selectedIndexes = new int[scores.length];
+			List<Set<String>> selectedSources = new ArrayList<Set<String>>();
+			for (int i = 0; i < selected; i++) {
+				selectedDocs[i] = touched[touchedCount - 1 - (int) candidates[touchedCount - 1 - i]];
+				selectedIndexes[selectedDocs[i]] = i + 1;
+				selectedSources.add(new LinkedHashSet<String>());
+			}
+			for (int i = 0; i < contributions; i++) {
+				int index = selectedIndexes[contributionDocs[i]];
+				if (index > 0) {
+					selectedSources.get(index - 1).addAll(sources.get(contributionQueries[i]));
+				}
+			}
+
+			List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+			List<SelectedTest> selectedTests = new ArrayList<SelectedTest>();
+			for (int i = 0; i < selected; i++) {
+				int docId = selectedDocs[i];
+				LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+				int doc = docId - leaf.docBase;
+				selectedTests.add(new SelectedTest(docValue(leaf, CLASS_NAME_FIELD, doc),
+						docValue(leaf, METHOD_NAME_FIELD, doc), docValue(leaf, PARAMETERS_FIELD, doc),
+						scores[docId], new ArrayList<String>(selectedSources.get(i))));
+			}
+			System.out.println("Fused " + Integer.toString(contributions) + " hits of " + Integer.toString(hits.length)
+					+ " queries into " + Integer.toString(touchedCount) + " tests, selected "
+					+ Integer.toString(selected) + " in " + Long.toString((System.nanoTime() - start) / 1000) + " us, "
+					+ cutoff);
+			return selectedTests;
+		} finally {
+			this.searcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * Returns the top n hits of each query, in the order of the queries<br>
+	 * Identical queries are only searched once. Batches of at least PARALLEL_SEARCH_THRESHOLD unique queries
+	 * are searched in parallel over the given searcher, by at most config.getQueryThreads() tasks of the
+	 * executor shared by every build, smaller ones on the calling thread
+	 * @param searcher
+	 * @param queries
 	 * @param n
 	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	public List<TestCase> getHits(String query, int n) {
-        List<TestCase> testCases = new ArrayList<TestCase>();
-        try {
-        	System.out.println("Querying for <=" + Integer.toString(n) + " test cases with query: [" + query + "]");
-            QueryParser queryParser = new QueryParser(CONTENT_FIELD, this.analyzer);
-            Query q = queryParser.parse(query);
+	private ScoreDoc[][] searchBatch(final IndexSearcher searcher, List<Query> queries, final int n)
+			throws IOException, InterruptedException {
+		long batchStart = System.nanoTime();
+		// Each unique query, and the position of its results
+		final List<Query> uniqueQueries = new ArrayList<Query>();
+		Map<Query, Integer> uniqueIndexes = new HashMap<Query, Integer>();
+		int[] resultIndexes = new int[queries.size()];
+		for (int i = 0; i < queries.size(); i++) {
+			Integer index = uniqueIndexes.get(queries.get(i));
+			if (index == null) {
+				index = uniqueQueries.size();
+				uniqueIndexes.put(queries.get(i), index);
+				uniqueQueries.add(queries.get(i));
+			}
+			resultIndexes[i] = index;
+		}
 
-            IndexSearcher searcher = new IndexSearcher(this.reader);
-            TopScoreDocCollector collector = TopScoreDocCollector.create(n);
-            
-            searcher.search(q, collector);
-            ScoreDoc[] hits = collector.topDocs().scoreDocs;
-            System.out.println("Found " + Integer.toString(hits.length) + " hits");
-            
-            List<Document> docs = new ArrayList<Document>();
+		final ScoreDoc[][] uniqueResults = new ScoreDoc[uniqueQueries.size()][];
+		final long[] latencies = new long[uniqueQueries.size()];
+		int tasks = uniqueQueries.size() < PARALLEL_SEARCH_THRESHOLD ? 1
+				: Math.min(this.config.getQueryThreads(), uniqueQueries.size());
+		if (tasks <= 1) {
+			for (int i = 0; i < uniqueQueries.size(); i++) {
+				uniqueResults[i] = search(searcher, uniqueQueries.get(i), n, latencies, i);
+			}
+		} else {
+			// Each task takes the next query not yet taken, until there are none left
+			final AtomicInteger next = new AtomicInteger();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < tasks; t++) {
+				futures.add(SEARCH_EXECUTOR.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						for (int i; (i = next.getAndIncrement()) < uniqueQueries.size();) {
+							uniqueResults[i] = search(searcher, uniqueQueries.get(i), n, latencies, i);
+						}
+						return null;
+					}
+				}));
+			}
+			try {
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} finally {
+				// Stops the other tasks of a failed or interrupted batch once their current query is searched,
+				// without interrupting them: an interrupted read closes the files of the shared searcher
+				next.set(uniqueQueries.size());
+				for (Future<Void> future : futures) {
+					future.cancel(false);
+				}
+			}
+		}
 
-            for (ScoreDoc hit : hits) {
-                Document doc = searcher.doc(hit.doc);
-                docs.add(doc);
-            }
-            System.out.println("Created " + Integer.toString(docs.size()) + " documents from hits");
-            for (Document doc : docs) {
-                String className = doc.get(CLASS_NAME_FIELD);
-                String methodName = doc.get(METHOD_NAME_FIELD);
-                String parameters = doc.get(PARAMETERS_FIELD);
-                String content = doc.get(CONTENT_FIELD);
-                
-                System.out.println("Document found: " + className + "." + methodName + "(" + parameters + ")");
+		long slowest = 0;
+		long sum = 0;
+		int hits = 0;
+		for (int i = 0; i < uniqueQueries.size(); i++) {
+			slowest = Math.max(slowest, latencies[i]);
+			sum += latencies[i];
+			hits += uniqueResults[i].length;
+		}
+		ScoreDoc[][] results = new ScoreDoc[queries.size()][];
+		for (int i = 0; i < resultIndexes.length; i++) {
+			results[i] = uniqueResults[resultIndexes[i]];
+		}
+		System.out.println("Searched " + Integer.toString(uniqueQueries.size()) + " unique queries (of "
+				+ Integer.toString(queries.size()) + ") for " + Integer.toString(hits) + " hits in "
+				+ Long.toString((System.nanoTime() - batchStart) / 1000000) + " ms on "
+				+ Integer.toString(Math.max(1, tasks))
+				+ " threads, per query: mean " + Long.toString(uniqueQueries.isEmpty() ? 0 : sum / uniqueQueries.size() / 1000)
+				+ " us, slowest " + Long.toString(slowest / 1000) + " us");
+		return results;
+	}
 
-                testCases.add(new TestCase(className, methodName, parameters, content));
-            }
-        } catch (ParseException e) {
-            // Do nothing
-        } catch (IOException e) {
-            // Do nothing
-        }
-        return testCases;
-    }
+	/**
+	 * Returns the top n hits of a query, recording how long it took
+	 * @param searcher
+	 * @param query
+	 * @param n
+	 * @param latencies
+	 * @param index where the latency is recorded
+	 * @return
+	 * @throws IOException
+	 */
+	private static ScoreDoc[] search(IndexSearcher searcher, Query query, int n, long[] latencies, int index)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			TopScoreDocCollector collector = TopScoreDocCollector.create(n);
+			searcher.search(query, collector);
+			return collector.topDocs().scoreDocs;
+		} finally {
+			latencies[index] = System.nanoTime() - start;
+		}
+	}
 
 	/**
-	 * Quick method to both store a document and update the reader
+	 * Reads the value of a sorted doc values field for a document within a segment
+	 * @param leaf
+	 * @param field
+	 * @param doc the document number within the segment
+	 * @return
+	 * @throws IOException
+	 */
+	private static String docValue(LeafReaderContext leaf, String field, int doc) throws IOException {
+		SortedDocValues values = leaf.reader().getSortedDocValues(field);
+		return values == null ? null : values.get(doc).utf8ToString();
+	}
+	
+	/**
+	 * Queues a document to be added to the index with the next commit<br>
+	 * Replaces any document with the same key
 	 * @param doc
 	 * @throws IOException
 	 */
     public void storeDoc(Document doc) throws IOException {
-    	this.dbWriter.addDocument(doc);
-    	updateReader();
+    	this.dbWriter.updateDocument(new Term(KEY_FIELD, doc.get(KEY_FIELD)), doc);
+    	operationsQueued(1);
     }
 
     /**
-     * Removes a document from the index given the 3 field identifiers
+     * Queues the removal of the document with the given key
+     * @param key as built by documentKey
+     * @throws IOException
+     */
+    public void removeDoc(String key) throws IOException {
+    	this.dbWriter.deleteDocuments(new Term(KEY_FIELD, key));
+    	operationsQueued(1);
+    }
+    
+    /**
+     * Queues the removal of every document built from the given file
+     * @param relativePath
+     * @throws IOException
+     */
+    public void removeFile(String relativePath) throws IOException {
+    	this.dbWriter.deleteDocuments(new Term(FILE_FIELD, relativePath));
+    	operationsQueued(1);
+    }
+    
+    /**
+     * Builds the key identifying a test method's document: file#class#method(parameters)
+     * @param relativePath
      * @param className
      * @param methodName
+     * @param parameters
      * @return
      */
-    public Document removeDoc(String className, String methodName, String parameters) {//typeSignature
-        try {
-            IndexSearcher searcher = new IndexSearcher(reader);
-            
-            // NOTE: good explanation on TermQuery/QueryParser
-            // https://stackoverflow.com/questions/40467591/what-is-the-difference-between-termquery-and-queryparser-in-lucene-6-0
-            
-            // Creates a query over multiple fields
-            // [field1,...,fieldn], [query1,...,queryn]
-            // Creates the query: [field1:query1,...,fieldn:queryn]
-            Query query = MultiFieldQueryParser.parse(
-            		new String[] {CLASS_NAME_FIELD, METHOD_NAME_FIELD, PARAMETERS_FIELD},
-            		new String[] {className, methodName, parameters},
-            		new SimpleAnalyzer());
-            
-            // Search that there exists a document of the given class, method, and parameter types
-            TopDocs search = searcher.search(query, 1);
-            Document doc = null;
-            if (search.scoreDocs.length > 0) {
-            	// Delete all documents with the matching signature: class.method.parameters (should be 1)
-                doc = searcher.doc(search.scoreDocs[0].doc);
-                dbWriter.deleteDocuments(query);
-                updateReader();
-            }
-            return doc;
-        } catch (IOException | ParseException e) {
-            throw new RuntimeException(e);
-        }
+    static String documentKey(String relativePath, String className, String methodName, String parameters) {
+    	return relativePath + "#" + className + "#" + methodName + "(" + parameters + ")";
     }
 
-    /**
-     * Parses camel case words into individual words
-     * @param s
-     * @return
-     */
-	public static String parseCamelCase(String s) {
-		StringBuilder result = new StringBuilder();
-		// Regex from https://stackoverflow.com/questions/7593969/regex-to-split-camelcase-or-titlecase-advanced
-		for (String w : s.split("(?<!(^|[A-Z]))(?=[A-Z])|(?<!^)(?=[A-Z][a-z])")) {
-			result.append(w);
-			result.append(" ");
-		}
-		return result.toString();
-	}
-	
 	/**
-	 * Builds a document's "content" field given a JavaParser MethodDeclaration and the pre-parsed class name
+	 * Builds a document's "content" field given a JavaParser MethodDeclaration and its class name<br>
+	 * The text is left as written, it is normalized by the CodeAnalyzer when indexed
 	 * @param method
-	 * @param parsedClassName
+	 * @param className
 	 * @return
 	 */
-	public static String getMethodContent(MethodDeclaration method, String parsedClassName) {
+	public static String getMethodContent(MethodDeclaration method, String className) {
 		StringBuilder methodContent = new StringBuilder();
 		// Get the method's class name
-		methodContent.append(parsedClassName);
+		methodContent.append(className);
 		methodContent.append("\n");
 		// Get method's name
-		String methodName = method.getName().asString(); // The real method name is needed later
-		String methodNameParsed = parseCamelCase(methodName).toLowerCase();
-		methodContent.append(InformationRetriever.removeStopwords(methodNameParsed));
+		methodContent.append(method.getName().asString());
 		methodContent.append("\n");
 		// Get method's parameters
 		for (Parameter param : method.getParameters()) {
-			String params = param.toString().replaceAll("[^A-Za-z ]", " ").trim();
-			params = parseCamelCase(params).toLowerCase();
-			methodContent.append(InformationRetriever.removeStopwords(params));
+			methodContent.append(param.toString());
 			methodContent.append(" ");
 		}
 		// Get method's documentation
 		Optional<Comment> javadocComment = method.getComment();
 		if (javadocComment.isPresent()) {
-			String javadoc = javadocComment.get().getContent();
-			javadoc = javadoc.replaceAll("[^A-Za-z ]", " ").trim();
-			javadoc = parseCamelCase(javadoc).toLowerCase();
-			methodContent.append(InformationRetriever.removeStopwordsAndKeywords(javadoc));
+			methodContent.append(javadocComment.get().getContent());
 			methodContent.append("\n");
 		}
 		// Get method's content
 		Optional<BlockStmt> methodBlock = method.getBody();
 		if (methodBlock.isPresent()) {
 			for (Statement statement : methodBlock.get().getStatements()) {
-				String statementContent = statement.toString().replaceAll("[^A-Za-z ]", " ").trim();
-				statementContent = parseCamelCase(statementContent).toLowerCase();
-				methodContent.append(InformationRetriever.removeStopwordsAndKeywords(statementContent));
+				methodContent.append(statement.toString());
 				methodContent.append("\n");
 			}
 		}
@@ -380,25 +672,50 @@ public class Indexer {
 	}
 	
 	/**
-	 * Builds an Apache Lucene document given the Strings for each field
+	 * Builds an Apache Lucene document given the Strings for each field<br>
+	 * Identifiers are indexed for search and kept as doc values for retrieval, the content
+	 * is only indexed unless storeContent is set
+	 * @param relativePath the file declaring the test method
 	 * @param className
 	 * @param methodName
 	 * @param parameters
 	 * @param content
+	 * @param storeContent
 	 * @return
 	 */
-	public static Document buildDocument(String className, String methodName, String parameters, String content) {
+	public static Document buildDocument(String relativePath, String className, String methodName, String parameters,
+			String content, boolean storeContent) {
 		Document document = new Document();
 		
+		// Add the unique key and the file, both untokenized so they can be used as delete terms
+		String key = documentKey(relativePath, className, methodName, parameters);
+		document.add(new StringField(KEY_FIELD, key, NO_STORE));
+		document.add(new StringField(FILE_FIELD, relativePath, NO_STORE));
 		// Add the method's class name
-		document.add(new TextField(CLASS_NAME_FIELD, className, STORE));
+		document.add(new TextField(CLASS_NAME_FIELD, className, NO_STORE));
+		document.add(new SortedDocValuesField(CLASS_NAME_FIELD, new BytesRef(className)));
 		// Add the method's name
-		document.add(new TextField(METHOD_NAME_FIELD, methodName, STORE));
+		document.add(new TextField(METHOD_NAME_FIELD, methodName, NO_STORE));
+		document.add(new SortedDocValuesField(METHOD_NAME_FIELD, new BytesRef(methodName)));
 		// Add the method's parameters
-		document.add(new TextField(PARAMETERS_FIELD, parameters, STORE));
+		document.add(new TextField(PARAMETERS_FIELD, parameters, NO_STORE));
+		document.add(new SortedDocValuesField(PARAMETERS_FIELD, new BytesRef(parameters)));
 		// Add the method's content
-		document.add(new TextField(CONTENT_FIELD, content, STORE));
+		document.add(new TextField(CONTENT_FIELD, content, storeContent ? STORE : NO_STORE));
 		
 		return document;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Counters reported after the index is built
+	 */
+	private static class IndexStats {
+		int ignoredFiles;
+		int failedFiles;
+		int parsedFiles;
+		int unchangedFiles;
+		int deletedFiles;
+		int testCaseMethods;
+		int nonTestCaseMethods;
+	}
+}
@@ -0,0 +1,99 @@
+package cs685.test.selection.ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Summaries of parsed Java files, kept across builds and keyed by content hash<br>
+ * One cache lives in each JVM that scans workspaces, so a file is parsed once per content
+ * no matter how many builds or stages need it. The cache is bounded by the total size of the
+ * sources it summarizes and evicts the least recently used summaries first
+ *
+ */
+public final class ParseCache {
+	private static final long MAX_SOURCE_BYTES = Long.getLong(ParseCache.class.getName() + ".maxSourceMB", 64L) * 1024 * 1024;
+
+	private static final ParseCache INSTANCE = new ParseCache();
+
+	// Access ordered, so iteration starts with the least recently used summary
+	private final LinkedHashMap<String, CachedSummary> summaries = new LinkedHashMap<String, CachedSummary>(256, 0.75f, true);
+	private long sourceBytes;
+	private long hits;
+	private long misses;
+
+	private ParseCache() {
+	}
+
+	public static ParseCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the summary of the given content, parsing it only if it is not cached
+	 * @param hash the content hash, as in FileState
+	 * @param content
+	 * @return
+	 */
+	public SourceSummary summarize(String hash, byte[] content) {
+		synchronized (this) {
+			CachedSummary cached = this.summaries.get(hash);
+			if (cached != null) {
+				this.hits++;
+				return cached.summary;
+			}
+			this.misses++;
+		}
+		// Parsed outside of the lock so workers parse in parallel, the same content may rarely be parsed twice
+		SourceSummary summary = SourceSummary.parse(content);
+		synchronized (this) {
+			if (!this.summaries.containsKey(hash)) {
+				this.summaries.put(hash, new CachedSummary(summary, content.length));
+				this.sourceBytes += content.length;
+				evict();
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Drops the least recently used summaries until the cache is within its bound
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, CachedSummary>> it = this.summaries.entrySet().iterator();
+		while (this.sourceBytes > MAX_SOURCE_BYTES && it.hasNext()) {
+			this.sourceBytes -= it.next().getValue().sourceBytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Number of lookups answered from the cache since the JVM started
+	 * @return
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * Number of lookups that had to parse since the JVM started
+	 * @return
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized int size() {
+		return this.summaries.size();
+	}
+
+	private static final class CachedSummary {
+		private final SourceSummary summary;
+		private final int sourceBytes;
+
+		private CachedSummary(SourceSummary summary, int sourceBytes) {
+			this.summary = summary;
+			this.sourceBytes = sourceBytes;
+		}
+	}
+}
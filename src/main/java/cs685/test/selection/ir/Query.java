@@ -1,5 +1,9 @@
 package cs685.test.selection.ir;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Stores information on IR queries
  * @author Ryan
@@ -9,11 +13,23 @@ public class Query {
 	private String classes;
 	private String methods;
 	private String query;
+	private List<String> hunks;
 
 	public Query(String classes, String methods, String query) {
+		this(classes, methods, query, Collections.<String>emptyList());
+	}
+
+	/**
+	 * @param classes
+	 * @param methods
+	 * @param query
+	 * @param hunks the hunks (file:firstLine-lastLine) the query was built from
+	 */
+	public Query(String classes, String methods, String query, List<String> hunks) {
 		this.classes = classes;
 		this.methods = methods;
 		this.query = query;
+		this.hunks = new ArrayList<String>(hunks);
 	}
 
 	public String getClasses() {
@@ -28,6 +44,10 @@ public class Query {
 		return this.query;
 	}
 
+	public List<String> getHunks() {
+		return Collections.unmodifiableList(this.hunks);
+	}
+
 	public String getCoverages() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("(");
@@ -0,0 +1,108 @@
+package cs685.test.selection.ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Builds weighted Lucene queries straight from the analyzed terms of a Query, without a query parser<br>
+ * Terms of the changed classes and methods are searched in the class_name and method_name fields with
+ * a boost, and every term is searched in the content weighted by how often it occurs in the hunk.
+ * Queries are capped at a number of clauses: class and method terms come first, then the most frequent
+ * content terms, so large hunks are trimmed instead of failing
+ *
+ */
+public class QueryBuilder {
+	private final float classBoost;
+	private final float methodBoost;
+	private final int maxClauses;
+
+	public QueryBuilder(IndexConfig config) {
+		this.classBoost = config.getClassBoost();
+		this.methodBoost = config.getMethodBoost();
+		this.maxClauses = Math.min(config.getMaxQueryClauses(), BooleanQuery.getMaxClauseCount());
+	}
+
+	/**
+	 * Builds the Lucene query of a hunk
+	 * @param query
+	 * @return
+	 */
+	public org.apache.lucene.search.Query build(Query query) {
+		BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
+		// The builder does not expose its clauses, so they are counted here
+		int clauses = addFieldTerms(booleanQuery, 0, Indexer.CLASS_NAME_FIELD, CodeAnalyzer.normalize(query.getClasses()),
+				this.classBoost);
+		clauses = addFieldTerms(booleanQuery, clauses, Indexer.METHOD_NAME_FIELD, CodeAnalyzer.normalize(query.getMethods()),
+				this.methodBoost);
+
+		// Count each content term, keeping the order they first appear in
+		final Map<String, Integer> frequencies = new LinkedHashMap<String, Integer>();
+		for (String term : splitTerms(query.getQuery())) {
+			Integer frequency = frequencies.get(term);
+			frequencies.put(term, frequency == null ? 1 : frequency + 1);
+		}
+		List<String> terms = new ArrayList<String>(frequencies.keySet());
+		// Stable, so terms that are as frequent keep their order
+		Collections.sort(terms, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return frequencies.get(b) - frequencies.get(a);
+			}
+		});
+		for (int i = 0; i < terms.size(); i++) {
+			if (clauses >= this.maxClauses) {
+				System.out.println("Query capped at " + Integer.toString(this.maxClauses) + " clauses, dropped "
+						+ Integer.toString(terms.size() - i) + " content terms");
+				break;
+			}
+			String term = terms.get(i);
+			TermQuery termQuery = new TermQuery(new Term(Indexer.CONTENT_FIELD, term));
+			termQuery.setBoost(frequencies.get(term));
+			booleanQuery.add(termQuery, BooleanClause.Occur.SHOULD);
+			clauses++;
+		}
+		return booleanQuery.build();
+	}
+
+	/**
+	 * Adds a boosted clause for each distinct term, within the clause cap
+	 * @param booleanQuery
+	 * @param clauses number of clauses already added
+	 * @param field
+	 * @param text analyzed terms separated by spaces
+	 * @param boost
+	 * @return the number of clauses added so far
+	 */
+	private int addFieldTerms(BooleanQuery.Builder booleanQuery, int clauses, String field, String text, float boost) {
+		for (String term : new LinkedHashSet<String>(splitTerms(text))) {
+			if (clauses >= this.maxClauses) {
+				break;
+			}
+			TermQuery termQuery = new TermQuery(new Term(field, term));
+			termQuery.setBoost(boost);
+			booleanQuery.add(termQuery, BooleanClause.Occur.SHOULD);
+			clauses++;
+		}
+		return clauses;
+	}
+
+	private static List<String> splitTerms(String text) {
+		List<String> terms = new ArrayList<String>();
+		for (String term : text.split(" ")) {
+			if (!term.isEmpty()) {
+				terms.add(term);
+			}
+		}
+		return terms;
+	}
+}
@@ -0,0 +1,74 @@
+package cs685.test.selection.ir;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Decides how many hits of each query take part in the selection<br>
+ * Up to ceiling hits are collected, the CutoffMode picks how many of them to keep from their scores, and
+ * at least floor are kept (when there are that many). Records how many hits were kept, for the report
+ *
+ */
+public class ScoreCutoff {
+	private final CutoffMode mode;
+	private final int floor;
+	private final int ceiling;
+	private final float threshold;
+	private int queries;
+	private int collected;
+	private int kept;
+
+	/**
+	 * @param mode
+	 * @param floor
+	 * @param ceiling
+	 * @param threshold fraction of the top score, 0 uses the default of the mode
+	 */
+	public ScoreCutoff(CutoffMode mode, int floor, int ceiling, float threshold) {
+		this.mode = mode;
+		this.ceiling = Math.max(1, ceiling);
+		this.floor = Math.max(1, Math.min(floor, this.ceiling));
+		this.threshold = threshold > 0 ? threshold : mode.getDefaultThreshold();
+	}
+
+	/**
+	 * Number of hits to collect for each query
+	 * @return
+	 */
+	public int getCeiling() {
+		return this.ceiling;
+	}
+
+	/**
+	 * Returns how many of the hits of a query to keep
+	 * @param hits in decreasing order of score, at most ceiling
+	 * @return
+	 */
+	public int cut(ScoreDoc[] hits) {
+		int keep = 0;
+		if (hits.length > 0) {
+			float[] scores = new float[hits.length];
+			for (int i = 0; i < hits.length; i++) {
+				scores[i] = hits[i].score;
+			}
+			keep = Math.min(hits.length, Math.max(this.floor, this.mode.cut(scores, this.threshold)));
+		}
+		this.queries++;
+		this.collected += hits.length;
+		this.kept += keep;
+		return keep;
+	}
+
+	/**
+	 * The mode and bounds of the cutoff, without what it kept
+	 * @return
+	 */
+	public String getSettings() {
+		return this.mode + " cutoff (floor " + this.floor + ", ceiling " + this.ceiling
+				+ (this.threshold > 0 ? ", threshold " + this.threshold : "") + ")";
+	}
+
+	@Override
+	public String toString() {
+		return getSettings() + " kept " + this.kept + " of " + this.collected + " hits over " + this.queries + " queries";
+	}
+}
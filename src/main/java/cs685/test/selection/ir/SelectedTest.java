@@ -0,0 +1,65 @@
+package cs685.test.selection.ir;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A test method chosen by the selection, with its fused score and the changes that led to it
+ *
+ */
+public class SelectedTest {
+	private final String className;
+	private final String methodName;
+	private final String parameters;
+	private final float score;
+	private final List<String> sources;
+
+	public SelectedTest(String className, String methodName, String parameters, float score, List<String> sources) {
+		this.className = className;
+		this.methodName = methodName;
+		this.parameters = parameters;
+		this.score = score;
+		this.sources = sources;
+	}
+
+	public String getClassName() {
+		return this.className;
+	}
+
+	public String getMethodName() {
+		return this.methodName;
+	}
+
+	public String getParameters() {
+		return this.parameters;
+	}
+
+	/**
+	 * Name of the test as used by surefire, Class.method
+	 * @return
+	 */
+	public String getName() {
+		return this.className + "." + this.methodName;
+	}
+
+	/**
+	 * Fused score over every query that found the test
+	 * @return
+	 */
+	public float getScore() {
+		return this.score;
+	}
+
+	/**
+	 * The hunks (file:firstLine-lastLine) whose queries found the test
+	 * @return
+	 */
+	public List<String> getSources() {
+		return Collections.unmodifiableList(this.sources);
+	}
+
+	@Override
+	public String toString() {
+		return getName() + "(" + this.parameters + ") score=" + this.score + " from " + this.sources;
+	}
+}
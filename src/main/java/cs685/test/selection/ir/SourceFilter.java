@@ -0,0 +1,165 @@
+package cs685.test.selection.ir;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files of a workspace are scanned, from include and exclude glob patterns<br>
+ * Patterns are relative to the workspace root and separated by new lines or commas. A pattern starting
+ * with ! is an exclude. * matches within a path segment, ** across segments and ? a single character.
+ * Excludes ending in /** also prune the directories they match, so those are never entered.
+ * The patterns are compiled once into a single regular expression for each kind
+ *
+ */
+public class SourceFilter implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final String DEFAULT_PATTERNS = "**/*.java\n!**/.git/**\n!**/node_modules/**";
+
+	// Maven and Gradle output directories, at any depth but never under a src directory, so packages
+	// named target or build (src/test/java/com/acme/build) are still scanned
+	private static final String OUTPUT_DIRECTORIES = "(?:(?!src/)[^/]+/)*(?:target|build)";
+
+	private static final SourceFilter DEFAULT = parse(DEFAULT_PATTERNS + "\n!{target,build}/** outside of src",
+			DEFAULT_PATTERNS, Collections.singletonList(OUTPUT_DIRECTORIES));
+
+	private final String patterns;
+	private final Pattern includes;
+	private final Pattern excludes;
+	private final Pattern excludedDirectories;
+
+	private SourceFilter(String patterns, Pattern includes, Pattern excludes, Pattern excludedDirectories) {
+		this.patterns = patterns;
+		this.includes = includes;
+		this.excludes = excludes;
+		this.excludedDirectories = excludedDirectories;
+	}
+
+	/**
+	 * The filter used when no patterns are configured: every Java file outside of .git, node_modules, and
+	 * target and build directories that are not under src
+	 * @return
+	 */
+	public static SourceFilter getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Compiles the given patterns<br>
+	 * Without any include pattern, every Java file that is not excluded is included
+	 * @param patterns
+	 * @return
+	 */
+	public static SourceFilter parse(String patterns) {
+		return parse(patterns, patterns, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Compiles the given patterns, and excludes the directories matching the given regular expressions
+	 * @param description what the filter is reported as
+	 * @param patterns
+	 * @param directoryRegexes
+	 * @return
+	 */
+	private static SourceFilter parse(String description, String patterns, List<String> directoryRegexes) {
+		List<String> includes = new ArrayList<String>();
+		List<String> excludes = new ArrayList<String>();
+		List<String> excludedDirectories = new ArrayList<String>();
+		for (String directoryRegex : directoryRegexes) {
+			excludes.add(directoryRegex + "/.*");
+			excludedDirectories.add(directoryRegex);
+		}
+		for (String pattern : patterns.split("[,\\r\\n]+")) {
+			pattern = pattern.trim();
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			if (pattern.startsWith("!")) {
+				String exclude = pattern.substring(1).trim();
+				excludes.add(toRegex(exclude));
+				if (exclude.endsWith("/**")) {
+					excludedDirectories.add(toRegex(exclude.substring(0, exclude.length() - 3)));
+				}
+			} else {
+				includes.add(toRegex(pattern));
+			}
+		}
+		if (includes.isEmpty()) {
+			includes.add(toRegex("**/*.java"));
+		}
+		return new SourceFilter(description, compile(includes), compile(excludes), compile(excludedDirectories));
+	}
+
+	/**
+	 * True if the file at the given relative path is scanned
+	 * @param relativePath
+	 * @return
+	 */
+	public boolean includesFile(String relativePath) {
+		return this.includes.matcher(relativePath).matches()
+				&& (this.excludes == null || !this.excludes.matcher(relativePath).matches());
+	}
+
+	/**
+	 * True if the directory at the given relative path is excluded along with everything under it
+	 * @param relativePath
+	 * @return
+	 */
+	public boolean excludesDirectory(String relativePath) {
+		return this.excludedDirectories != null && this.excludedDirectories.matcher(relativePath).matches();
+	}
+
+	/**
+	 * Joins the regular expressions into a single alternation, or null if there are none
+	 * @param regexes
+	 * @return
+	 */
+	private static Pattern compile(List<String> regexes) {
+		if (regexes.isEmpty()) {
+			return null;
+		}
+		return Pattern.compile("(?:" + String.join(")|(?:", regexes) + ")");
+	}
+
+	/**
+	 * Translates a glob into a regular expression
+	 * @param glob
+	 * @return
+	 */
+	private static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int i = 0;
+		while (i < glob.length()) {
+			char c = glob.charAt(i);
+			if (glob.startsWith("**/", i)) {
+				// Any number of leading directories, including none
+				regex.append("(?:.*/)?");
+				i += 3;
+			} else if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i += 2;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+				i++;
+			} else if (c == '?') {
+				regex.append("[^/]");
+				i++;
+			} else {
+				if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+					regex.append('\\');
+				}
+				regex.append(c);
+				i++;
+			}
+		}
+		return regex.toString();
+	}
+
+	@Override
+	public String toString() {
+		return this.patterns.replaceAll("[\\r\\n]+", ",");
+	}
+}
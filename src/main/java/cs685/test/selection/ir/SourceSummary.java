@@ -0,0 +1,247 @@
+package cs685.test.selection.ir;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.Range;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.EnumDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.expr.AnnotationExpr;
+
+/**
+ * What the selection needs from a parsed Java file: the line ranges of its declarations, used to map
+ * diff hunks to classes and methods, and the test records to index<br>
+ * Much lighter than a CompilationUnit, so it can be cached and sent across the remoting channel
+ *
+ */
+public class SourceSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Simple names of the annotations marking a test method: JUnit 4 and TestNG @Test, and the JUnit 5 variants
+	 */
+	public static final Set<String> TEST_ANNOTATIONS = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("Test", "ParameterizedTest", "RepeatedTest", "TestFactory", "TestTemplate")));
+
+	private static final SourceSummary NO_TESTS = new SourceSummary();
+
+	private final List<Declaration> declarations = new ArrayList<Declaration>();
+	private final List<TestCase> testCases = new ArrayList<TestCase>();
+	private int testCaseMethods;
+	private int nonTestCaseMethods;
+	private transient DeclarationIndex declarationIndex;
+
+	private SourceSummary() {
+	}
+
+	/**
+	 * The summary of a file that cannot contain test methods, and so was not parsed<br>
+	 * It has no declarations, so it must not be used for files whose hunks are mapped to declarations
+	 * @return
+	 */
+	public static SourceSummary noTests() {
+		return NO_TESTS;
+	}
+
+	/**
+	 * Cheaply checks whether the content may contain test methods, without parsing it<br>
+	 * Looks for an annotation whose (possibly qualified) name ends with one of TEST_ANNOTATIONS.
+	 * Annotations in comments or strings also match, so only files that certainly have no tests are rejected
+	 * @param content
+	 * @return
+	 */
+	public static boolean mayContainTests(byte[] content) {
+		int i = 0;
+		while (i < content.length) {
+			if (content[i++] != '@') {
+				continue;
+			}
+			// Skip whitespace between @ and the name
+			while (i < content.length && Character.isWhitespace(content[i])) {
+				i++;
+			}
+			// Read the qualified name, and remember where its last segment starts
+			int nameStart = i;
+			while (i < content.length && (Character.isJavaIdentifierPart(content[i]) || content[i] == '.')) {
+				if (content[i] == '.') {
+					nameStart = i + 1;
+				}
+				i++;
+			}
+			if (i > nameStart
+					&& TEST_ANNOTATIONS.contains(new String(content, nameStart, i - nameStart, StandardCharsets.US_ASCII))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses the content of a Java file into its summary
+	 * @param content
+	 * @return
+	 */
+	public static SourceSummary parse(byte[] content) {
+		SourceSummary summary = new SourceSummary();
+		CompilationUnit cu = JavaParser.parse(new ByteArrayInputStream(content));
+		// Get the class names
+		List<ClassOrInterfaceDeclaration> classes = cu.findAll(ClassOrInterfaceDeclaration.class);
+		for (ClassOrInterfaceDeclaration classDeclaration : classes) {
+			// Get class name and parse it
+			String className = classDeclaration.getName().asString(); // Keep class name unparsed for future use
+			summary.addDeclaration(Declaration.Kind.CLASS, className, classDeclaration);
+			List<MethodDeclaration> methods = classDeclaration.getChildNodesByType(MethodDeclaration.class);
+			for (MethodDeclaration method : methods) {
+				boolean isTestCase = false;
+				boolean isIgnored = false;
+				NodeList<AnnotationExpr> annotations = method.getAnnotations();
+				for (AnnotationExpr annotation : annotations) {
+					if (TEST_ANNOTATIONS.contains(annotation.getName().getIdentifier())) {
+						isTestCase = true;
+					}
+					else if (annotation.getNameAsString().equals("Ignore") || annotation.getNameAsString().equals("Disabled")) {
+						isIgnored = true;
+					}
+				}
+				if (isTestCase) {
+					summary.testCaseMethods++;
+					// Only index the test case if it is not @Ignore (or @Disabled)
+					if (isIgnored) {
+						continue;
+					}
+					String methodName = method.getName().asString();
+					List<String> parametersList = new ArrayList<String>();
+					for (Parameter parameter : method.getParameters()) {
+						parametersList.add(parameter.getTypeAsString());
+					}
+					String parameters = String.join(",", parametersList);
+
+					// Record the test method with the content of its document
+					summary.testCases.add(new TestCase(className, methodName, parameters,
+							Indexer.getMethodContent(method, className)));
+				} else {
+					summary.nonTestCaseMethods++;
+				}
+			}
+		}
+		// Enums. Anonymous classes are not declarations of their own: they would be named after the type
+		// they instantiate (Runnable, Comparator), so their lines count for the named class around them
+		for (EnumDeclaration enumDeclaration : cu.findAll(EnumDeclaration.class)) {
+			summary.addDeclaration(Declaration.Kind.CLASS, enumDeclaration.getNameAsString(), enumDeclaration);
+		}
+		// Every method and constructor declared in the file, including those of nested and anonymous classes
+		for (MethodDeclaration method : cu.findAll(MethodDeclaration.class)) {
+			summary.addDeclaration(Declaration.Kind.METHOD, method.getName().asString(), method);
+		}
+		for (ConstructorDeclaration constructor : cu.findAll(ConstructorDeclaration.class)) {
+			summary.addDeclaration(Declaration.Kind.METHOD, constructor.getNameAsString(), constructor);
+		}
+		return summary;
+	}
+
+	private void addDeclaration(Declaration.Kind kind, String name, Node node) {
+		Optional<Range> range = node.getRange();
+		if (range.isPresent()) {
+			this.declarations.add(new Declaration(kind, name, range.get().begin.line, range.get().end.line));
+		}
+	}
+
+	/**
+	 * The named classes (including enums) and methods (including constructors) declared
+	 * in the file, with their line ranges
+	 * @return
+	 */
+	public List<Declaration> getDeclarations() {
+		return Collections.unmodifiableList(this.declarations);
+	}
+
+	/**
+	 * Returns the interval index of the declarations, built the first time it is needed
+	 * @return
+	 */
+	public synchronized DeclarationIndex getDeclarationIndex() {
+		if (this.declarationIndex == null) {
+			this.declarationIndex = new DeclarationIndex(this.declarations);
+		}
+		return this.declarationIndex;
+	}
+
+	/**
+	 * The test methods that should be indexed (excludes @Ignore tests)
+	 * @return
+	 */
+	public List<TestCase> getTestCases() {
+		return Collections.unmodifiableList(this.testCases);
+	}
+
+	/**
+	 * Number of test methods found, including @Ignore tests
+	 * @return
+	 */
+	public int getTestCaseMethods() {
+		return this.testCaseMethods;
+	}
+
+	public int getNonTestCaseMethods() {
+		return this.nonTestCaseMethods;
+	}
+
+	/**
+	 * A class or method declaration and the lines it spans (inclusive)
+	 */
+	public static class Declaration implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public enum Kind {
+			CLASS, METHOD
+		}
+
+		private final Kind kind;
+		private final String name;
+		private final int beginLine;
+		private final int endLine;
+
+		public Declaration(Kind kind, String name, int beginLine, int endLine) {
+			this.kind = kind;
+			this.name = name;
+			this.beginLine = beginLine;
+			this.endLine = endLine;
+		}
+
+		public Kind getKind() {
+			return this.kind;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public int getBeginLine() {
+			return this.beginLine;
+		}
+
+		public int getEndLine() {
+			return this.endLine;
+		}
+
+		@Override
+		public String toString() {
+			return this.kind + " " + this.name + " (" + this.beginLine + ", " + this.endLine + ")";
+		}
+	}
+}
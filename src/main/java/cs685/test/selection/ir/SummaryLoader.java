@@ -0,0 +1,101 @@
+package cs685.test.selection.ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Summarizes a batch of the files a WorkspaceScanner left pending, where the workspace lives<br>
+ * The Indexer asks for config.getMaxInFlightFiles() files at a time and indexes each batch before asking
+ * for the next, so neither side ever holds the test methods of more files than that. Summaries come from
+ * the ParseCache, so content seen before is not parsed again, and files are parsed on
+ * config.getIndexThreads() worker threads
+ *
+ */
+public class SummaryLoader extends MasterToSlaveFileCallable<WorkspaceScan> {
+	private static final long serialVersionUID = 1L;
+
+	private final List<WorkspaceScan.ScannedFile> files;
+	private final IndexConfig config;
+
+	/**
+	 * @param files pending files of the scan
+	 * @param config
+	 */
+	public SummaryLoader(List<WorkspaceScan.ScannedFile> files, IndexConfig config) {
+		this.files = new ArrayList<WorkspaceScan.ScannedFile>(files);
+		this.config = config;
+	}
+
+	@Override
+	public WorkspaceScan invoke(final File root, VirtualChannel channel) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		ParseCache cache = ParseCache.getInstance();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		WorkspaceScan batch = new WorkspaceScan();
+		ExecutorService workers = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(this.config.getIndexThreads(), this.files.size())));
+		try {
+			List<Future<WorkspaceScan.ScannedFile>> futures = new ArrayList<Future<WorkspaceScan.ScannedFile>>();
+			for (final WorkspaceScan.ScannedFile file : this.files) {
+				futures.add(workers.submit(new Callable<WorkspaceScan.ScannedFile>() {
+					@Override
+					public WorkspaceScan.ScannedFile call() {
+						try {
+							return load(new File(root, file.getRelativePath()), file);
+						} catch (Exception e) {
+							System.out.println("ERROR: failed to parse Java file " + file.getRelativePath() + ": " + e);
+							return WorkspaceScan.ScannedFile.failed(file.getRelativePath());
+						}
+					}
+				}));
+			}
+			for (Future<WorkspaceScan.ScannedFile> future : futures) {
+				try {
+					batch.addFile(future.get());
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+		batch.setScanMillis((System.nanoTime() - start) / 1000000);
+		batch.setParseCacheStats(cache.getHits() - hits, cache.getMisses() - misses, cache.size());
+		return batch;
+	}
+
+	/**
+	 * Summarizes a pending file<br>
+	 * The file is hashed again, in case it changed since it was scanned
+	 * @param file
+	 * @param pending
+	 * @return
+	 * @throws IOException
+	 */
+	private static WorkspaceScan.ScannedFile load(File file, WorkspaceScan.ScannedFile pending) throws IOException {
+		byte[] content = Files.readAllBytes(file.toPath());
+		FileState state = pending.getState();
+		String hash = FileState.hashOf(content);
+		boolean unchanged = pending.isUnchanged();
+		if (!hash.equals(state.getHash())) {
+			state = new FileState(file.lastModified(), content.length, hash);
+			unchanged = false;
+		}
+		SourceSummary summary = ParseCache.getInstance().summarize(state.getHash(), content);
+		return unchanged
+				? WorkspaceScan.ScannedFile.unchanged(pending.getRelativePath(), state, summary)
+				: WorkspaceScan.ScannedFile.parsed(pending.getRelativePath(), state, summary);
+	}
+}
@@ -1,11 +1,15 @@
 package cs685.test.selection.ir;
 
+import java.io.Serializable;
+
 /**
  * Stores information on all the fields in an Apache Lucene document as Strings
  * @author Ryan
  *
  */
-public class TestCase {
+public class TestCase implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
 	private final String className;
 	private final String methodName;
 	private final String parameters;
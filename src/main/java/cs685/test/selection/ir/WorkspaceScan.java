@@ -0,0 +1,289 @@
+package cs685.test.selection.ir;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Java files found by a WorkspaceScanner, or a batch of them summarized by a SummaryLoader<br>
+ * Sent back from the machine holding the workspace, so it only holds compact records: the scan of the
+ * whole workspace has the state of every file, and only the batches carry summaries
+ *
+ */
+public class WorkspaceScan implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final List<ScannedFile> files = new ArrayList<ScannedFile>();
+	private int ignoredFiles;
+	private int directories;
+	private int prunedDirectories;
+	private long scanMillis;
+	private int rejectedFiles;
+	private long parseCacheHits;
+	private long parseCacheMisses;
+	private int parseCacheSize;
+	private int remoteCalls = 1;
+	private transient Map<String, ScannedFile> filesByPath;
+
+	public List<ScannedFile> getFiles() {
+		return this.files;
+	}
+
+	void addFile(ScannedFile file) {
+		this.files.add(file);
+	}
+
+	/**
+	 * Returns the scanned file at the given relative path, or null if it was not scanned
+	 * @param relativePath
+	 * @return
+	 */
+	public ScannedFile getFile(String relativePath) {
+		return filesByPath().get(relativePath);
+	}
+
+	private Map<String, ScannedFile> filesByPath() {
+		if (this.filesByPath == null) {
+			this.filesByPath = new HashMap<String, ScannedFile>();
+			for (ScannedFile file : this.files) {
+				this.filesByPath.put(file.getRelativePath(), file);
+			}
+		}
+		return this.filesByPath;
+	}
+
+	/**
+	 * Accounts for a batch of pending files summarized by a SummaryLoader<br>
+	 * Only the files to keep replace their pending version, so that getFile returns their summary: the
+	 * summaries of the other files are dropped once indexed
+	 * @param batch
+	 * @param keep relative paths of the files whose summary is needed after indexing
+	 */
+	void loaded(WorkspaceScan batch, Set<String> keep) {
+		for (ScannedFile file : batch.getFiles()) {
+			if (keep.contains(file.getRelativePath())) {
+				filesByPath().put(file.getRelativePath(), file);
+			}
+		}
+		this.scanMillis += batch.getScanMillis();
+		this.parseCacheHits += batch.getParseCacheHits();
+		this.parseCacheMisses += batch.getParseCacheMisses();
+		this.parseCacheSize = batch.getParseCacheSize();
+		this.remoteCalls++;
+	}
+
+	/**
+	 * Number of calls to the machine holding the workspace: the scan, then one per batch of summaries
+	 * @return
+	 */
+	public int getRemoteCalls() {
+		return this.remoteCalls;
+	}
+
+	/**
+	 * The relative paths of every Java file in the workspace
+	 * @return
+	 */
+	public Set<String> getJavaFiles() {
+		Set<String> javaFiles = new HashSet<String>();
+		for (ScannedFile file : this.files) {
+			javaFiles.add(file.getRelativePath());
+		}
+		return javaFiles;
+	}
+
+	/**
+	 * Number of directories walked
+	 * @return
+	 */
+	public int getDirectories() {
+		return this.directories;
+	}
+
+	void walkedDirectory() {
+		this.directories++;
+	}
+
+	/**
+	 * Number of directories skipped because they are excluded
+	 * @return
+	 */
+	public int getPrunedDirectories() {
+		return this.prunedDirectories;
+	}
+
+	void prunedDirectory() {
+		this.prunedDirectories++;
+	}
+
+	/**
+	 * Number of files that are not Java files, or are not included by the source filter
+	 * @return
+	 */
+	public int getIgnoredFiles() {
+		return this.ignoredFiles;
+	}
+
+	void ignoredFile() {
+		this.ignoredFiles++;
+	}
+
+	/**
+	 * Time taken to walk and hash the workspace, and to parse the batches loaded since
+	 * @return
+	 */
+	public long getScanMillis() {
+		return this.scanMillis;
+	}
+
+	void setScanMillis(long scanMillis) {
+		this.scanMillis = scanMillis;
+	}
+
+	/**
+	 * Number of changed files that were not parsed, because they cannot contain test methods
+	 * @return
+	 */
+	public int getRejectedFiles() {
+		return this.rejectedFiles;
+	}
+
+	void setRejectedFiles(int rejectedFiles) {
+		this.rejectedFiles = rejectedFiles;
+	}
+
+	/**
+	 * Number of files whose summary came from the ParseCache during this scan
+	 * @return
+	 */
+	public long getParseCacheHits() {
+		return this.parseCacheHits;
+	}
+
+	/**
+	 * Number of files that had to be parsed during this scan
+	 * @return
+	 */
+	public long getParseCacheMisses() {
+		return this.parseCacheMisses;
+	}
+
+	/**
+	 * Number of summaries in the ParseCache after this scan
+	 * @return
+	 */
+	public int getParseCacheSize() {
+		return this.parseCacheSize;
+	}
+
+	void setParseCacheStats(long hits, long misses, int size) {
+		this.parseCacheHits = hits;
+		this.parseCacheMisses = misses;
+		this.parseCacheSize = size;
+	}
+
+	/**
+	 * A single Java file: unchanged since the last build, parsed into test records, or failed to parse<br>
+	 * Files that changed, and files that had to be updated, are pending in the scan of the workspace: their
+	 * summary is loaded afterwards, in batches, by a SummaryLoader
+	 */
+	public static class ScannedFile implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String relativePath;
+		private final FileState state;
+		private final boolean unchanged;
+		private final SourceSummary summary;
+		private final boolean pending;
+
+		private ScannedFile(String relativePath, FileState state, boolean unchanged, SourceSummary summary,
+				boolean pending) {
+			this.relativePath = relativePath;
+			this.state = state;
+			this.unchanged = unchanged;
+			this.summary = summary;
+			this.pending = pending;
+		}
+
+		static ScannedFile unchanged(String relativePath, FileState state, SourceSummary summary) {
+			return new ScannedFile(relativePath, state, true, summary, false);
+		}
+
+		static ScannedFile parsed(String relativePath, FileState state, SourceSummary summary) {
+			return new ScannedFile(relativePath, state, false, summary, false);
+		}
+
+		static ScannedFile pending(String relativePath, FileState state, boolean unchanged) {
+			return new ScannedFile(relativePath, state, unchanged, null, true);
+		}
+
+		static ScannedFile failed(String relativePath) {
+			return new ScannedFile(relativePath, null, false, null, false);
+		}
+
+		/**
+		 * Path relative to the workspace root, using forward slashes
+		 * @return
+		 */
+		public String getRelativePath() {
+			return this.relativePath;
+		}
+
+		/**
+		 * The file's current state, or null if it could not be read or parsed
+		 * @return
+		 */
+		public FileState getState() {
+			return this.state;
+		}
+
+		public boolean isUnchanged() {
+			return this.unchanged;
+		}
+
+		public boolean isFailed() {
+			return this.state == null;
+		}
+
+		/**
+		 * True if the file changed, or must be updated, and its summary is still to be loaded
+		 * @return
+		 */
+		public boolean isPending() {
+			return this.pending;
+		}
+
+		/**
+		 * The summary of the file's content, or null if it was unchanged and not updated, is pending, or failed
+		 * @return
+		 */
+		public SourceSummary getSummary() {
+			return this.summary;
+		}
+
+		/**
+		 * The test methods that should be indexed (excludes @Ignore tests)
+		 * @return
+		 */
+		public List<TestCase> getTestCases() {
+			return this.summary != null ? this.summary.getTestCases() : Collections.<TestCase>emptyList();
+		}
+
+		/**
+		 * Number of test methods found, including @Ignore tests
+		 * @return
+		 */
+		public int getTestCaseMethods() {
+			return this.summary != null ? this.summary.getTestCaseMethods() : 0;
+		}
+
+		public int getNonTestCaseMethods() {
+			return this.summary != null ? this.summary.getNonTestCaseMethods() : 0;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package cs685.test.selection.ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Walks a workspace where it lives (on the agent for remote workspaces) and finds every Java file that
+ * changed since the last build<br>
+ * Only the compact WorkspaceScan is sent back, so the sources never cross the remoting channel. Files are
+ * hashed on a bounded pool of worker threads while the walk continues, and at most
+ * config.getMaxInFlightFiles() files are in flight at once. Changed files are left pending: their test
+ * methods are extracted afterwards by a SummaryLoader, a batch at a time, so the scan stays the size of the
+ * file list whatever the size of the sources. Only the files and directories allowed by
+ * config.getSourceFilter() are visited
+ *
+ */
+public class WorkspaceScanner extends MasterToSlaveFileCallable<WorkspaceScan> {
+	private static final long serialVersionUID = 1L;
+
+	private final Map<String, FileState> previousStates;
+	private final Set<String> filesToUpdate;
+	private final IndexConfig config;
+
+	/**
+	 * @param previousStates state of each file when it was last indexed
+	 * @param filesToUpdate files that are always hashed, even if their size and modification time did not change
+	 * @param config
+	 */
+	public WorkspaceScanner(Map<String, FileState> previousStates, Set<String> filesToUpdate, IndexConfig config) {
+		this.previousStates = previousStates;
+		this.filesToUpdate = new HashSet<String>(filesToUpdate);
+		this.config = config;
+	}
+
+	@Override
+	public WorkspaceScan invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		WorkspaceScan scan = new WorkspaceScan();
+		final AtomicInteger rejectedFiles = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(this.config.getIndexThreads());
+		CompletionService<WorkspaceScan.ScannedFile> scannedFiles = new ExecutorCompletionService<WorkspaceScan.ScannedFile>(workers);
+		SourceFilter filter = this.config.getSourceFilter();
+		int inFlight = 0;
+		try {
+			// Iterate over the entire directory, keeping each directory's path relative to the root
+			Deque<File> toProcess = new ArrayDeque<File>();
+			Deque<String> relativePaths = new ArrayDeque<String>();
+			toProcess.push(root);
+			relativePaths.push("");
+			while (!toProcess.isEmpty()) {
+				File dir = toProcess.pop();
+				String dirPath = relativePaths.pop();
+				File[] children = dir.listFiles();
+				if (children == null) {
+					continue;
+				}
+				scan.walkedDirectory();
+				for (final File child : children) {
+					final String relativePath = dirPath.isEmpty() ? child.getName() : dirPath + "/" + child.getName();
+					if (child.isDirectory()) {
+						// Excluded directories are never entered
+						if (filter.excludesDirectory(relativePath)) {
+							scan.prunedDirectory();
+							continue;
+						}
+						toProcess.push(child);
+						relativePaths.push(relativePath);
+					} else if (child.getName().endsWith(".java") && filter.includesFile(relativePath)) {
+						// If a java file, check it on a worker once there is room
+						if (inFlight >= this.config.getMaxInFlightFiles()) {
+							scan.addFile(take(scannedFiles));
+							inFlight--;
+						}
+						final FileState previous = this.previousStates.get(relativePath);
+						final boolean forceHash = this.filesToUpdate.contains(relativePath);
+						scannedFiles.submit(new Callable<WorkspaceScan.ScannedFile>() {
+							@Override
+							public WorkspaceScan.ScannedFile call() {
+								try {
+									return scanFile(child, relativePath, previous, forceHash, rejectedFiles);
+								} catch (Exception e) {
+									System.out.println("ERROR: failed to read Java file " + relativePath + ": " + e);
+									return WorkspaceScan.ScannedFile.failed(relativePath);
+								}
+							}
+						});
+						inFlight++;
+					} else {
+						scan.ignoredFile();
+					}
+				}
+			}
+			// Drain the files still being parsed
+			while (inFlight > 0) {
+				scan.addFile(take(scannedFiles));
+				inFlight--;
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+		scan.setScanMillis((System.nanoTime() - start) / 1000000);
+		scan.setRejectedFiles(rejectedFiles.get());
+		return scan;
+	}
+
+	/**
+	 * Waits for the next scanned file from the workers
+	 * @param scannedFiles
+	 * @return
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	private static WorkspaceScan.ScannedFile take(CompletionService<WorkspaceScan.ScannedFile> scannedFiles)
+			throws InterruptedException, IOException {
+		try {
+			return scannedFiles.take().get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Checks a single Java file against its previous state<br>
+	 * The file is unchanged if its size and modification time, or its content hash, match the previous state.
+	 * Files that changed, or must be updated, are pending, except the changed files that cannot contain tests:
+	 * they will not be parsed at all
+	 * @param file
+	 * @param relativePath
+	 * @param previous the state from the last build, or null
+	 * @param forceHash
+	 * @param rejectedFiles counts the files skipped by the test pre-filter
+	 * @return
+	 * @throws IOException
+	 */
+	private static WorkspaceScan.ScannedFile scanFile(File file, String relativePath, FileState previous,
+			boolean forceHash, AtomicInteger rejectedFiles) throws IOException {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (previous != null && !forceHash && previous.hasSameStat(lastModified, length)) {
+			return WorkspaceScan.ScannedFile.unchanged(relativePath, previous, null);
+		}
+		byte[] content = Files.readAllBytes(file.toPath());
+		FileState state = new FileState(lastModified, length, FileState.hashOf(content));
+		boolean unchanged = previous != null && previous.getHash().equals(state.getHash());
+		if (unchanged && !forceHash) {
+			return WorkspaceScan.ScannedFile.unchanged(relativePath, state, null);
+		}
+		if (!forceHash && !SourceSummary.mayContainTests(content)) {
+			// Nothing to index, and no hunks to map to its declarations
+			rejectedFiles.incrementAndGet();
+			return WorkspaceScan.ScannedFile.parsed(relativePath, state, SourceSummary.noTests());
+		}
+		return WorkspaceScan.ScannedFile.pending(relativePath, state, unchanged);
+	}
+}
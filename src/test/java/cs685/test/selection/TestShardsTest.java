@@ -0,0 +1,61 @@
+package cs685.test.selection;
+
+import static cs685.test.selection.TimeBudgetSelectorTest.history;
+import static cs685.test.selection.TimeBudgetSelectorTest.test;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cs685.test.selection.ir.SelectedTest;
+
+public class TestShardsTest {
+	@Test
+	public void assignsLongestClassesFirstToTheLeastLoadedShard() {
+		Map<String, TestHistory.Entry> entries = new HashMap<String, TestHistory.Entry>();
+		entries.put("A.a", new TestHistory.Entry(2, 1, 0));
+		entries.put("B.a", new TestHistory.Entry(7, 1, 0));
+		entries.put("C.a", new TestHistory.Entry(3, 1, 0));
+		entries.put("C.b", new TestHistory.Entry(3, 1, 0));
+		entries.put("D.a", new TestHistory.Entry(4, 1, 0));
+		entries.put("E.a", new TestHistory.Entry(5, 1, 0));
+		List<SelectedTest> tests = Arrays.asList(test("A", "a", 1), test("C", "a", 1), test("B", "a", 1),
+				test("D", "a", 1), test("C", "b", 1), test("E", "a", 1));
+		List<TestShards.Shard> shards = TestShards.plan(tests, new TimeBudgetSelector(history(entries), 0), true, 2);
+		// B 7, C 6, E 5, D 4, A 2: E joins C (6 < 7), D joins B (7 < 11), and A the first of the two
+		// shards tied at 11
+		assertEquals(2, shards.size());
+		assertEquals(Arrays.asList("B", "D", "A"), new ArrayList<String>(shards.get(0).getClasses().keySet()));
+		assertEquals(Arrays.asList("C", "E"), new ArrayList<String>(shards.get(1).getClasses().keySet()));
+		assertEquals(Arrays.asList("a", "b"), shards.get(1).getClasses().get("C"));
+		assertEquals(13, shards.get(0).getEstimatedSeconds(), 1e-9);
+		assertEquals(11, shards.get(1).getEstimatedSeconds(), 1e-9);
+	}
+
+	@Test
+	public void balancesByClassCountWithoutHistory() {
+		List<SelectedTest> tests = Arrays.asList(test("A", "a", 1), test("A", "b", 1), test("A", "c", 1),
+				test("B", "a", 1), test("C", "a", 1));
+		List<TestShards.Shard> shards = TestShards.plan(tests, new TimeBudgetSelector(history(), 0), false, 2);
+		assertEquals(2, shards.size());
+		assertEquals(Arrays.asList("A", "C"), new ArrayList<String>(shards.get(0).getClasses().keySet()));
+		assertEquals(Arrays.asList("B"), new ArrayList<String>(shards.get(1).getClasses().keySet()));
+		// Each test is estimated at the default second, not 0
+		assertEquals(4, shards.get(0).getEstimatedSeconds(), 1e-9);
+		assertEquals(1, shards.get(1).getEstimatedSeconds(), 1e-9);
+	}
+
+	@Test
+	public void plansNoMoreShardsThanClasses() {
+		List<SelectedTest> tests = Arrays.asList(test("A", "a", 1), test("A", "b", 1));
+		List<TestShards.Shard> shards = TestShards.plan(tests, new TimeBudgetSelector(history(), 0), true, 4);
+		assertEquals(1, shards.size());
+		assertEquals(2, shards.get(0).getEstimatedSeconds(), 1e-9);
+		assertEquals(0, TestShards.plan(new ArrayList<SelectedTest>(), new TimeBudgetSelector(history(), 0), true, 4).size());
+	}
+}
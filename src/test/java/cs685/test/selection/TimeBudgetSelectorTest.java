@@ -0,0 +1,84 @@
+package cs685.test.selection;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cs685.test.selection.ir.SelectedTest;
+
+public class TimeBudgetSelectorTest {
+	@Test
+	public void takesTheBestRankedWithoutABudget() {
+		TimeBudgetSelector selector = new TimeBudgetSelector(history(), 0);
+		List<SelectedTest> candidates = Arrays.asList(test("A", "a", 3), test("A", "b", 2), test("B", "c", 1));
+		assertEquals(Arrays.asList("A.a", "A.b"), names(selector.select(candidates, 2)));
+		assertEquals(Arrays.asList("A.a", "A.b", "B.c"), names(selector.select(candidates, 10)));
+	}
+
+	@Test
+	public void prefersQuickRelevantTests() {
+		Map<String, TestHistory.Entry> entries = new HashMap<String, TestHistory.Entry>();
+		entries.put("A.slow", new TestHistory.Entry(8, 3, 0));
+		entries.put("A.quick", new TestHistory.Entry(1, 3, 0));
+		entries.put("B.quick", new TestHistory.Entry(1, 3, 0));
+		entries.put("B.medium", new TestHistory.Entry(3, 3, 0));
+		TimeBudgetSelector selector = new TimeBudgetSelector(history(entries), 5);
+		List<SelectedTest> candidates = Arrays.asList(test("A", "slow", 10), test("A", "quick", 5),
+				test("B", "quick", 4), test("B", "medium", 3));
+		// The slow test is worth less per second than the others, and no longer fits once they are in
+		assertEquals(Arrays.asList("A.quick", "B.quick", "B.medium"), names(selector.select(candidates, 10)));
+		assertEquals(Arrays.asList("A.quick"), names(selector.select(candidates, 1)));
+	}
+
+	@Test
+	public void skipsTestsThatNoLongerFit() {
+		Map<String, TestHistory.Entry> entries = new HashMap<String, TestHistory.Entry>();
+		entries.put("A.a", new TestHistory.Entry(4, 1, 0));
+		entries.put("A.b", new TestHistory.Entry(4, 1, 0));
+		entries.put("A.c", new TestHistory.Entry(1, 1, 0));
+		TimeBudgetSelector selector = new TimeBudgetSelector(history(entries), 5);
+		List<SelectedTest> candidates = Arrays.asList(test("A", "a", 8), test("A", "b", 7.9f), test("A", "c", 1));
+		assertEquals(Arrays.asList("A.a", "A.c"), names(selector.select(candidates, 10)));
+	}
+
+	@Test
+	public void estimatesUnknownTestsFromTheMean() {
+		Map<String, TestHistory.Entry> entries = new HashMap<String, TestHistory.Entry>();
+		entries.put("A.a", new TestHistory.Entry(2, 1, 0));
+		entries.put("A.b", new TestHistory.Entry(4, 1, 0));
+		entries.put("A.failed", new TestHistory.Entry(0, 0, 1));
+		entries.put("A.instant", new TestHistory.Entry(0, 5, 0));
+		TimeBudgetSelector selector = new TimeBudgetSelector(history(entries), 0);
+		assertEquals(2, selector.estimate(test("A", "a", 1)), 1e-9);
+		assertEquals(2, selector.estimate(test("A", "unknown", 1)), 1e-9);
+		assertEquals(2, selector.estimate(test("A", "failed", 1)), 1e-9);
+		assertEquals(0.01, selector.estimate(test("A", "instant", 1)), 1e-9);
+		assertEquals(1, new TimeBudgetSelector(history(), 0).estimate(test("A", "a", 1)), 1e-9);
+	}
+
+	static TestHistory history() {
+		return history(new HashMap<String, TestHistory.Entry>());
+	}
+
+	static TestHistory history(Map<String, TestHistory.Entry> entries) {
+		return new TestHistory(entries);
+	}
+
+	static SelectedTest test(String className, String methodName, float score) {
+		return new SelectedTest(className, methodName, "", score, new ArrayList<String>());
+	}
+
+	private static List<String> names(List<SelectedTest> tests) {
+		List<String> names = new ArrayList<String>();
+		for (SelectedTest test : tests) {
+			names.add(test.getName());
+		}
+		return names;
+	}
+}
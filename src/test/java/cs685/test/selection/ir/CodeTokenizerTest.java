@@ -0,0 +1,87 @@
+package cs685.test.selection.ir;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.junit.Test;
+
+public class CodeTokenizerTest {
+	@Test
+	public void splitsCamelCase() throws IOException {
+		assertEquals(Arrays.asList("foo", "Bar", "Baz"), tokenize("fooBarBaz"));
+		assertEquals(Arrays.asList("Foo", "Bar"), tokenize("FooBar"));
+		assertEquals(Arrays.asList("HTML", "Parser"), tokenize("HTMLParser"));
+		assertEquals(Arrays.asList("parse", "HTML"), tokenize("parseHTML"));
+		assertEquals(Arrays.asList("get", "URL", "For", "Id"), tokenize("getURLForId"));
+		assertEquals(Arrays.asList("A", "Bc"), tokenize("ABc"));
+		assertEquals(Arrays.asList("X"), tokenize("X"));
+	}
+
+	@Test
+	public void dropsEverythingButLetters() throws IOException {
+		assertEquals(Arrays.asList("assert", "Equals", "foo", "bar"), tokenize("assertEquals(foo_bar, 42);"));
+		assertEquals(Arrays.asList("a", "b"), tokenize("  a1b  "));
+		assertEquals(Arrays.asList("caf", "x"), tokenize("caf\u00e9 x"));
+		assertEquals(Arrays.<String>asList(), tokenize(" 123 {}; "));
+		assertEquals(Arrays.<String>asList(), tokenize(""));
+	}
+
+	@Test
+	public void reportsOffsetsIntoTheInput() throws IOException {
+		CodeTokenizer tokenizer = new CodeTokenizer();
+		OffsetAttribute offsets = tokenizer.addAttribute(OffsetAttribute.class);
+		tokenizer.setReader(new StringReader("a.fooBar"));
+		tokenizer.reset();
+		List<String> ranges = new ArrayList<String>();
+		while (tokenizer.incrementToken()) {
+			ranges.add(offsets.startOffset() + "-" + offsets.endOffset());
+		}
+		tokenizer.end();
+		assertEquals(Arrays.asList("0-1", "2-5", "5-8"), ranges);
+		assertEquals(8, offsets.endOffset());
+		tokenizer.close();
+	}
+
+	@Test
+	public void readsInputLargerThanTheBuffer() throws IOException {
+		StringBuilder text = new StringBuilder();
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			text.append("someName ");
+			expected.add("some");
+			expected.add("Name");
+		}
+		assertEquals(expected, tokenize(text.toString()));
+	}
+
+	@Test
+	public void isReusable() throws IOException {
+		CodeTokenizer tokenizer = new CodeTokenizer();
+		assertEquals(Arrays.asList("first", "Call"), tokenize(tokenizer, "firstCall"));
+		assertEquals(Arrays.asList("second"), tokenize(tokenizer, "second"));
+	}
+
+	private static List<String> tokenize(String text) throws IOException {
+		return tokenize(new CodeTokenizer(), text);
+	}
+
+	private static List<String> tokenize(CodeTokenizer tokenizer, String text) throws IOException {
+		CharTermAttribute term = tokenizer.addAttribute(CharTermAttribute.class);
+		tokenizer.setReader(new StringReader(text));
+		tokenizer.reset();
+		List<String> tokens = new ArrayList<String>();
+		while (tokenizer.incrementToken()) {
+			tokens.add(term.toString());
+		}
+		tokenizer.end();
+		tokenizer.close();
+		return tokens;
+	}
+}
@@ -0,0 +1,80 @@
+package cs685.test.selection.ir;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import cs685.test.selection.ir.SourceSummary.Declaration;
+import cs685.test.selection.ir.SourceSummary.Declaration.Kind;
+
+public class DeclarationIndexTest {
+	// class Outer { m1 ... class Inner { m2 ... m3 } ... m4 }
+	private static final List<Declaration> DECLARATIONS = Arrays.asList(
+			new Declaration(Kind.METHOD, "m4", 70, 90),
+			new Declaration(Kind.CLASS, "Outer", 1, 100),
+			new Declaration(Kind.METHOD, "m2", 22, 30),
+			new Declaration(Kind.METHOD, "m1", 3, 10),
+			new Declaration(Kind.CLASS, "Inner", 20, 60),
+			new Declaration(Kind.METHOD, "m3", 40, 58));
+
+	@Test
+	public void findsNestedDeclarations() {
+		DeclarationIndex index = new DeclarationIndex(DECLARATIONS);
+		assertEquals(Arrays.asList("Outer", "Inner", "m2"), names(index.overlapping(25, 25)));
+		assertEquals(Arrays.asList("Outer", "Inner", "m3"), names(index.overlapping(58, 60)));
+	}
+
+	@Test
+	public void findsDeclarationsContainedInTheRange() {
+		DeclarationIndex index = new DeclarationIndex(DECLARATIONS);
+		assertEquals(Arrays.asList("Outer", "Inner", "m2", "m3", "m4"), names(index.overlapping(21, 75)));
+	}
+
+	@Test
+	public void skipsDisjointDeclarations() {
+		DeclarationIndex index = new DeclarationIndex(DECLARATIONS);
+		assertEquals(Arrays.asList("Outer"), names(index.overlapping(11, 19)));
+		assertEquals(Arrays.asList("Outer"), names(index.overlapping(95, 200)));
+		assertEquals(Arrays.<String>asList(), names(index.overlapping(101, 200)));
+		assertEquals(Arrays.<String>asList(), names(new DeclarationIndex(new ArrayList<Declaration>()).overlapping(1, 10)));
+	}
+
+	@Test
+	public void matchesALinearScan() {
+		Random random = new Random(685);
+		List<Declaration> declarations = new ArrayList<Declaration>();
+		for (int i = 0; i < 500; i++) {
+			int begin = random.nextInt(2000) + 1;
+			declarations.add(new Declaration(Kind.METHOD, "m" + i, begin, begin + random.nextInt(i % 10 == 0 ? 500 : 20)));
+		}
+		DeclarationIndex index = new DeclarationIndex(declarations);
+		for (int i = 0; i < 1000; i++) {
+			int start = random.nextInt(2600);
+			int end = start + random.nextInt(30);
+			List<String> expected = new ArrayList<String>();
+			for (Declaration declaration : declarations) {
+				if (declaration.getBeginLine() <= end && declaration.getEndLine() >= start) {
+					expected.add(declaration.getName());
+				}
+			}
+			List<String> actual = names(index.overlapping(start, end));
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals("lines " + start + "-" + end, expected, actual);
+		}
+	}
+
+	private static List<String> names(List<Declaration> declarations) {
+		List<String> names = new ArrayList<String>();
+		for (Declaration declaration : declarations) {
+			names.add(declaration.getName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,76 @@
+package cs685.test.selection.ir;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.junit.Test;
+
+public class ScoreCutoffTest {
+	@Test
+	public void fixedKeepsEveryHit() {
+		assertEquals(4, CutoffMode.FIXED.cut(new float[] { 4, 3, 2, 1 }, 0));
+	}
+
+	@Test
+	public void relativeKeepsHitsAboveAFractionOfTheTop() {
+		assertEquals(2, CutoffMode.RELATIVE.cut(new float[] { 10, 5, 4.9f, 1 }, 0.5f));
+		assertEquals(1, CutoffMode.RELATIVE.cut(new float[] { 10 }, 0.5f));
+	}
+
+	@Test
+	public void kneeStopsWhereTheScoresLevelOff() {
+		// A few strong hits, then a long flat tail
+		assertEquals(3, CutoffMode.KNEE.cut(new float[] { 10, 9, 8, 2, 1.9f, 1.8f, 1.7f, 1.6f, 1.5f, 1.4f }, 0));
+		assertEquals(1, CutoffMode.KNEE.cut(new float[] { 10, 2, 1.9f, 1.8f, 1.7f, 1.6f }, 0));
+	}
+
+	@Test
+	public void kneeKeepsEveryHitWithoutABend() {
+		// Linear, bending up, equal, or too few scores to have a knee
+		assertEquals(5, CutoffMode.KNEE.cut(new float[] { 5, 4, 3, 2, 1 }, 0));
+		assertEquals(5, CutoffMode.KNEE.cut(new float[] { 10, 9.9f, 9.8f, 9.7f, 1 }, 0));
+		assertEquals(3, CutoffMode.KNEE.cut(new float[] { 2, 2, 2 }, 0));
+		assertEquals(2, CutoffMode.KNEE.cut(new float[] { 10, 1 }, 0));
+		assertEquals(1, CutoffMode.KNEE.cut(new float[] { 10 }, 0));
+	}
+
+	@Test
+	public void gapStopsAtTheFirstLargeDrop() {
+		assertEquals(3, CutoffMode.GAP.cut(new float[] { 10, 9, 8, 5, 4, 1 }, 0.25f));
+		assertEquals(1, CutoffMode.GAP.cut(new float[] { 10, 7, 6 }, 0.25f));
+		assertEquals(4, CutoffMode.GAP.cut(new float[] { 10, 9, 8, 7 }, 0.25f));
+	}
+
+	@Test
+	public void cutoffIsBoundedByTheFloor() {
+		ScoreCutoff cutoff = new ScoreCutoff(CutoffMode.GAP, 3, 10, 0);
+		assertEquals(3, cutoff.cut(hits(10, 1, 0.9f, 0.8f, 0.7f)));
+		// Never more than the hits collected
+		assertEquals(2, cutoff.cut(hits(10, 1)));
+		assertEquals(0, cutoff.cut(hits()));
+		assertEquals("GAP cutoff (floor 3, ceiling 10, threshold 0.25) kept 5 of 7 hits over 3 queries",
+				cutoff.toString());
+	}
+
+	@Test
+	public void cutoffKeepsWhatTheModeDecides() {
+		ScoreCutoff cutoff = new ScoreCutoff(CutoffMode.KNEE, 1, 10, 0);
+		assertEquals(3, cutoff.cut(hits(10, 9, 8, 2, 1.9f, 1.8f, 1.7f, 1.6f, 1.5f, 1.4f)));
+		assertEquals(10, new ScoreCutoff(CutoffMode.FIXED, 1, 10, 0).cut(hits(10, 9, 8, 2, 1.9f, 1.8f, 1.7f, 1.6f, 1.5f, 1.4f)));
+	}
+
+	@Test
+	public void boundsAreClamped() {
+		ScoreCutoff cutoff = new ScoreCutoff(CutoffMode.FIXED, 20, 0, 0);
+		assertEquals(1, cutoff.getCeiling());
+		assertEquals("FIXED cutoff (floor 1, ceiling 1)", cutoff.getSettings());
+	}
+
+	private static ScoreDoc[] hits(float... scores) {
+		ScoreDoc[] hits = new ScoreDoc[scores.length];
+		for (int i = 0; i < scores.length; i++) {
+			hits[i] = new ScoreDoc(i, scores[i]);
+		}
+		return hits;
+	}
+}
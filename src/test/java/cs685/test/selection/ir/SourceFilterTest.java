@@ -0,0 +1,70 @@
+package cs685.test.selection.ir;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SourceFilterTest {
+	@Test
+	public void compilesGlobs() {
+		SourceFilter filter = SourceFilter.parse("src/**/*Test.java, lib/?/*.java\n!**/generated/**");
+		assertTrue(filter.includesFile("src/FooTest.java"));
+		assertTrue(filter.includesFile("src/test/java/com/acme/FooTest.java"));
+		assertFalse(filter.includesFile("src/test/java/com/acme/Foo.java"));
+		assertFalse(filter.includesFile("other/FooTest.java"));
+		assertTrue(filter.includesFile("lib/a/Foo.java"));
+		assertFalse(filter.includesFile("lib/ab/Foo.java"));
+		assertFalse(filter.includesFile("lib/a/b/Foo.java"));
+		assertFalse(filter.includesFile("src/generated/FooTest.java"));
+		assertFalse(filter.includesFile("src/main/generated/sub/FooTest.java"));
+	}
+
+	@Test
+	public void escapesRegexCharacters() {
+		SourceFilter filter = SourceFilter.parse("a+b/(x)/*.java");
+		assertTrue(filter.includesFile("a+b/(x)/Foo.java"));
+		assertFalse(filter.includesFile("aab/x/Foo.java"));
+		assertFalse(filter.includesFile("a+b/(x)/Foo_java"));
+	}
+
+	@Test
+	public void includesEveryJavaFileWithoutIncludes() {
+		SourceFilter filter = SourceFilter.parse("!legacy/**");
+		assertTrue(filter.includesFile("Foo.java"));
+		assertTrue(filter.includesFile("a/b/Foo.java"));
+		assertFalse(filter.includesFile("a/b/Foo.txt"));
+		assertFalse(filter.includesFile("legacy/Foo.java"));
+	}
+
+	@Test
+	public void prunesExcludedDirectories() {
+		SourceFilter filter = SourceFilter.parse("**/*.java\n!**/generated/**\n!docs/*.java");
+		assertTrue(filter.excludesDirectory("generated"));
+		assertTrue(filter.excludesDirectory("src/main/generated"));
+		assertFalse(filter.excludesDirectory("src/main/generated2"));
+		assertFalse(filter.excludesDirectory("src/main"));
+		// Only excludes ending in /** cover whole directories
+		assertFalse(filter.excludesDirectory("docs"));
+		assertFalse(filter.includesFile("docs/Foo.java"));
+		assertTrue(filter.includesFile("docs/sub/Foo.java"));
+	}
+
+	@Test
+	public void prunesOutputDirectoriesOutsideOfSrc() {
+		SourceFilter filter = SourceFilter.getDefault();
+		assertTrue(filter.includesFile("src/test/java/com/acme/build/FooTest.java"));
+		assertTrue(filter.includesFile("module/src/test/java/com/acme/target/FooTest.java"));
+		assertFalse(filter.excludesDirectory("src/test/java/com/acme/build"));
+		assertFalse(filter.excludesDirectory("module/src/main/java/target"));
+		assertTrue(filter.excludesDirectory("target"));
+		assertTrue(filter.excludesDirectory("module/target"));
+		assertTrue(filter.excludesDirectory("srcx/build"));
+		assertFalse(filter.includesFile("target/generated-test-sources/FooTest.java"));
+		assertFalse(filter.includesFile("module/target/FooTest.java"));
+		assertFalse(filter.includesFile("srcx/build/FooTest.java"));
+		assertTrue(filter.excludesDirectory(".git"));
+		assertTrue(filter.excludesDirectory("web/node_modules"));
+		assertFalse(filter.includesFile("web/node_modules/pkg/Foo.java"));
+	}
+}